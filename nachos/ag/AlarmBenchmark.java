@@ -0,0 +1,214 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * An autograder that stress tests <tt>Alarm</tt> and reports how late, in
+ * ticks, threads and timeouts wake after their deadlines. It boots the
+ * kernel, and then:
+ *
+ * <ol>
+ * <li>forks a number of threads, each of which sleeps repeatedly in
+ * <tt>waitUntil()</tt> for a random time, and
+ * <li>schedules a large number of timeouts with random delays, cancels every
+ * third one, and waits for the rest to expire.
+ * </ol>
+ *
+ * <p>
+ * A sleeping thread's lateness is measured when the alarm makes it ready,
+ * so it does not include the time the thread then waits in the ready queue.
+ * That wait is reported separately as its dispatch delay.
+ *
+ * <p>
+ * The default of 20000 threads needs more than the project configurations
+ * allow, so run it with <tt>gmake alarmbench</tt>, which uses
+ * <tt>threads/alarmbench.conf</tt>, or with fewer threads in any project,
+ * for example
+ * <tt>nachos -- nachos.ag.AlarmBenchmark -# threads=200,timeouts=50000</tt>.
+ * Set <tt>Timer.tickless</tt> on or off to compare.
+ */
+public class AlarmBenchmark extends AutoGrader {
+    /**
+     * Allocate a new alarm benchmark.
+     */
+    public AlarmBenchmark() {
+    }
+
+    void init() {
+	threads = getIntegerArgument("threads", 20000);
+	sleeps = getIntegerArgument("sleeps", 10);
+	timeouts = getIntegerArgument("timeouts", 50000);
+	maxDelay = getIntegerArgument("maxDelay", 10000);
+	Lib.assertTrue(threads >= 0 && sleeps > 0 && timeouts >= 0 &&
+		       maxDelay > 0, "arguments must be positive");
+	Lib.assertTrue(threads < Config.getInteger("TCB.maxThreads", 250),
+		       "more threads than TCB.maxThreads allows");
+    }
+
+    /**
+     * Record the lateness of a sleeper as the alarm makes it ready.
+     */
+    public void readyThread(KThread thread) {
+	super.readyThread(thread);
+
+	Sleeper sleeper = sleepers.get(thread);
+	if (sleeper != null && sleeper.asleep) {
+	    sleeper.asleep = false;
+	    sleeper.woken = getTime();
+	    threadLateness.add(sleeper.woken - sleeper.deadline);
+	}
+    }
+
+    void run() {
+	long startTime = System.nanoTime();
+
+	KThread[] forked = new KThread[threads];
+	for (int i=0; i<threads; i++) {
+	    final Random random = new Random(i);
+	    final Sleeper sleeper = new Sleeper();
+
+	    forked[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<sleeps; j++) {
+			    long delay = 1 + random.nextInt(maxDelay);
+
+			    // a preemption before it sleeps is not its wakeup
+			    boolean intStatus = Machine.interrupt().disable();
+			    sleeper.deadline = getTime() + delay;
+			    sleeper.asleep = true;
+			    ThreadedKernel.alarm.waitUntil(delay);
+			    Machine.interrupt().restore(intStatus);
+
+			    dispatchDelay.add(getTime() - sleeper.woken);
+			}
+		    }
+		});
+	    sleepers.put(forked[i], sleeper);
+	    forked[i].setName("sleeper " + i).fork();
+	}
+	for (int i=0; i<threads; i++)
+	    forked[i].join();
+
+	printTitle(threads + " threads, " + sleeps + " sleeps each",
+		   threadLateness.count, System.nanoTime() - startTime);
+	threadLateness.print();
+	dispatchDelay.print();
+
+	startTime = System.nanoTime();
+
+	Random random = new Random(0);
+	int expected = 0;
+	Timeout[] scheduled = new Timeout[timeouts];
+
+	// schedule and cancel them all at one time
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<timeouts; i++) {
+	    long delay = 1 + random.nextInt(maxDelay);
+	    scheduled[i] = new Timeout(getTime() + delay);
+	    ThreadedKernel.alarm.setTimeout(scheduled[i], delay);
+	}
+	for (int i=0; i<timeouts; i++) {
+	    if (i%3 == 0)
+		Lib.assertTrue(ThreadedKernel.alarm.cancelTimeout(scheduled[i]));
+	    else
+		expected++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	while (timeoutLateness.count < expected)
+	    ThreadedKernel.alarm.waitUntil(maxDelay);
+
+	Lib.assertTrue(timeoutLateness.count == expected,
+		       "a cancelled timeout expired");
+
+	printTitle(timeouts + " timeouts, " + (timeouts-expected) + " cancelled",
+		   timeoutLateness.count, System.nanoTime() - startTime);
+	timeoutLateness.print();
+
+	done();
+    }
+
+    /** The sleep a forked thread is in. */
+    private static class Sleeper {
+	boolean asleep = false;
+	long deadline, woken;
+    }
+
+    private class Timeout extends TimingWheel.Timeout {
+	Timeout(long deadline) {
+	    this.deadline = deadline;
+	}
+
+	public void expire() {
+	    timeoutLateness.add(getTime() - deadline);
+	}
+
+	private long deadline;
+    }
+
+    private static void printTitle(String title, int count, long elapsed) {
+	System.out.println("Alarm: " + title + ": " + count + " wakeups in "
+			   + (elapsed / 1000000) + " ms");
+    }
+
+    /**
+     * A histogram of wake-up lateness or delay, in decades of ticks.
+     */
+    private static class Histogram {
+	Histogram(String name) {
+	    this.name = name;
+	}
+
+	void add(long ticks) {
+	    Lib.assertTrue(ticks >= 0, "woke before the deadline");
+
+	    int bucket = 0;
+	    for (long limit=1; bucket<buckets.length-1 && ticks>=limit;
+		 limit*=10)
+		bucket++;
+
+	    buckets[bucket]++;
+	    count++;
+	    total += ticks;
+	    max = Math.max(max, ticks);
+	}
+
+	void print() {
+	    if (count == 0)
+		return;
+
+	    System.out.println("  " + name + ": mean " + (total / count)
+			       + ", max " + max + " ticks");
+
+	    long limit = 1;
+	    for (int i=0; i<buckets.length; i++) {
+		String range = (i == 0) ? "0" :
+		    (i == buckets.length-1) ? ">=" + limit :
+		    limit + "-" + (limit*10 - 1);
+		if (i > 0)
+		    limit *= 10;
+
+		System.out.println("    " + range + " ticks: " + buckets[i]);
+	    }
+	}
+
+	String name;
+	long[] buckets = new long[6];
+	int count = 0;
+	long total = 0, max = 0;
+    }
+
+    private int threads, sleeps, timeouts, maxDelay;
+
+    private HashMap<KThread, Sleeper> sleepers =
+	new HashMap<KThread, Sleeper>();
+    private Histogram threadLateness = new Histogram("lateness");
+    private Histogram dispatchDelay = new Histogram("dispatch delay");
+    private Histogram timeoutLateness = new Histogram("lateness");
+}
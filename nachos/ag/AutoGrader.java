@@ -102,6 +102,13 @@ public class AutoGrader {
 	}
     }
 
+    int getIntegerArgument(String key, int defaultValue) {
+	if (testArgs.get(key) == null)
+	    return defaultValue;
+
+	return getIntegerArgument(key);
+    }
+
     boolean getBooleanArgument(String key) {
 	String value = getStringArgument(key);
 
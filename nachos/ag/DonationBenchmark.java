@@ -0,0 +1,129 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Random;
+
+/**
+ * An autograder that measures the cost of priority donation in the
+ * scheduler. It builds wait queues and threads that are never forked, and
+ * times:
+ *
+ * <ol>
+ * <li>a chain of nested locks, where each thread holds one lock and waits for
+ * the lock held by the thread before it, while the priority of the thread at
+ * the end of the chain changes back and forth, and
+ * <li>a single lock that many threads wait for, while the priorities of
+ * random waiters change, followed by handing the lock to each waiter in turn.
+ * </ol>
+ *
+ * <p>
+ * Run it with, for example,
+ * <tt>nachos -- nachos.ag.DonationBenchmark -# depth=1000,fanIn=1000</tt>
+ * in a project whose <tt>ThreadedKernel.scheduler</tt> is a priority
+ * scheduler.
+ */
+public class DonationBenchmark extends AutoGrader {
+    /**
+     * Allocate a new donation benchmark.
+     */
+    public DonationBenchmark() {
+    }
+
+    void init() {
+	depth = getIntegerArgument("depth", 1000);
+	fanIn = getIntegerArgument("fanIn", 1000);
+	changes = getIntegerArgument("changes", 100000);
+	Lib.assertTrue(depth > 0 && fanIn > 0 && changes > 0,
+		       "arguments must be positive");
+    }
+
+    void run() {
+	Scheduler scheduler = ThreadedKernel.scheduler;
+	boolean check = (scheduler.getClass() == PriorityScheduler.class);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// thread i holds lock i and waits for lock i-1
+	KThread[] chain = newThreads(depth+1);
+	ThreadQueue[] locks = new ThreadQueue[depth];
+	for (int i=0; i<depth; i++) {
+	    locks[i] = scheduler.newThreadQueue(true);
+	    locks[i].acquire(chain[i]);
+	    if (i > 0)
+		locks[i-1].waitForAccess(chain[i]);
+	}
+	locks[depth-1].waitForAccess(chain[depth]);
+
+	long startTime = System.nanoTime();
+
+	for (int i=0; i<changes; i++) {
+	    int priority = (i%2 == 0) ? PriorityScheduler.priorityMaximum :
+		PriorityScheduler.priorityDefault;
+	    scheduler.setPriority(chain[depth], priority);
+	    if (check)
+		Lib.assertTrue(scheduler.getEffectivePriority(chain[0]) ==
+			       priority, "priority not donated down the chain");
+	}
+
+	print("chain of " + depth + " locks", changes, "priority changes",
+	      System.nanoTime() - startTime);
+
+	// one lock held by one thread, with every other thread waiting for it
+	KThread[] waiters = newThreads(fanIn+1);
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	lock.acquire(waiters[fanIn]);
+	for (int i=0; i<fanIn; i++)
+	    lock.waitForAccess(waiters[i]);
+
+	Random random = new Random(0);
+	startTime = System.nanoTime();
+
+	for (int i=0; i<changes; i++) {
+	    scheduler.setPriority(waiters[random.nextInt(fanIn)],
+				  random.nextInt(PriorityScheduler.priorityMaximum+1));
+	    scheduler.getEffectivePriority(waiters[fanIn]);
+	}
+
+	print(fanIn + " threads waiting for one lock", changes,
+	      "priority changes", System.nanoTime() - startTime);
+
+	startTime = System.nanoTime();
+
+	int last = PriorityScheduler.priorityMaximum;
+	for (int i=0; i<fanIn; i++) {
+	    KThread thread = lock.nextThread();
+	    Lib.assertTrue(thread != null, "a waiting thread was lost");
+	    if (check) {
+		int priority = scheduler.getPriority(thread);
+		Lib.assertTrue(priority <= last, "threads not in priority order");
+		last = priority;
+	    }
+	}
+	Lib.assertTrue(lock.nextThread() == null);
+
+	print(fanIn + " threads waiting for one lock", fanIn, "handoffs",
+	      System.nanoTime() - startTime);
+
+	Machine.interrupt().restore(intStatus);
+
+	done();
+    }
+
+    private KThread[] newThreads(int count) {
+	KThread[] threads = new KThread[count];
+	for (int i=0; i<count; i++)
+	    threads[i] = new KThread().setName("donor " + i);
+
+	return threads;
+    }
+
+    private void print(String title, int count, String what, long elapsed) {
+	System.out.println("Donation: " + title + ": " + count + " " + what
+			   + " in " + (elapsed / 1000000) + " ms ("
+			   + (elapsed / count) + " ns each)");
+    }
+
+    private int depth, fanIn, changes;
+}
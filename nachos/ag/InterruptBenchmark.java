@@ -0,0 +1,71 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+import java.util.Random;
+
+/**
+ * An autograder that measures the cost of scheduling and delivering device
+ * interrupts. Instead of running the kernel, it simulates a number of
+ * devices, each of which reschedules its interrupt from its handler after a
+ * random delay, and advances simulated time until the requested number of
+ * interrupts has been delivered.
+ *
+ * <p>
+ * Run it with, for example,
+ * <tt>nachos -- nachos.ag.InterruptBenchmark -# interrupts=2000000,devices=64</tt>
+ * in any project.
+ */
+public class InterruptBenchmark extends AutoGrader {
+    /**
+     * Allocate a new interrupt benchmark.
+     */
+    public InterruptBenchmark() {
+    }
+
+    void init() {
+	interrupts = getIntegerArgument("interrupts", 1000000);
+	devices = getIntegerArgument("devices", 64);
+	Lib.assertTrue(interrupts > 0 && devices > 0,
+		       "interrupts and devices must be positive");
+    }
+
+    void run() {
+	for (int i=0; i<devices; i++)
+	    scheduleDevice();
+
+	long startTicks = getTime();
+	long startTime = System.nanoTime();
+
+	while (delivered < interrupts)
+	    privilege.interrupt.tick(true);
+
+	long elapsed = System.nanoTime() - startTime;
+
+	System.out.println("Interrupt queue: " + delivered + " interrupts from "
+			   + devices + " devices over " + (getTime()-startTicks)
+			   + " ticks in " + (elapsed / 1000000) + " ms ("
+			   + (elapsed / delivered) + " ns/interrupt)");
+
+	done();
+    }
+
+    private void scheduleDevice() {
+	privilege.interrupt.schedule(1 + random.nextInt(maxDelay), "device",
+				     deviceHandler);
+    }
+
+    private Runnable deviceHandler = new Runnable() {
+	    public void run() {
+		delivered++;
+		scheduleDevice();
+	    }
+	};
+
+    private int interrupts, devices;
+    private int delivered = 0;
+    private Random random = new Random(0);
+
+    private static final int maxDelay = 1000;
+}
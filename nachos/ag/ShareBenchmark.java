@@ -0,0 +1,121 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * An autograder that measures how closely the scheduler shares the CPU in
+ * proportion to tickets. It forks a number of CPU-bound threads, the
+ * <i>i</i>th of which has <i>i</i>+1 tickets (its priority, as set with
+ * <tt>Scheduler.setPriority()</tt>). Each thread repeatedly does a unit of
+ * work and yields. After the threads have run for the requested number of
+ * ticks, and at nine earlier checkpoints, it prints the share error: how far,
+ * in percent of the CPU, each thread's share of the work units done is from
+ * its share of the tickets.
+ *
+ * <p>
+ * Run it with, for example,
+ * <tt>nachos -- nachos.ag.ShareBenchmark -# threads=5,ticks=2000000</tt>
+ * in a project whose <tt>ThreadedKernel.scheduler</tt> is
+ * <tt>nachos.threads.LotteryScheduler</tt> or
+ * <tt>nachos.threads.StrideScheduler</tt>, to compare the two.
+ */
+public class ShareBenchmark extends AutoGrader {
+    /**
+     * Allocate a new share benchmark.
+     */
+    public ShareBenchmark() {
+    }
+
+    void init() {
+	threads = getIntegerArgument("threads", 5);
+	ticks = getIntegerArgument("ticks", 2000000);
+	unit = getIntegerArgument("unit", 10);
+	Lib.assertTrue(threads > 0 && ticks > 0 && unit > 0,
+		       "arguments must be positive");
+    }
+
+    void run() {
+	units = new long[threads];
+
+	KThread[] workers = new KThread[threads];
+	for (int i=0; i<threads; i++) {
+	    final int which = i;
+
+	    workers[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!stopped) {
+			    // each interrupt enable takes a tick
+			    for (int j=0; j<unit; j++) {
+				Machine.interrupt().disable();
+				Machine.interrupt().enable();
+			    }
+			    units[which]++;
+			    KThread.yield();
+			}
+		    }
+		});
+	    workers[i].setName("worker " + i);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(workers[i], i+1);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	System.out.println("Share: " + threads + " threads with 1 to " +
+			   threads + " tickets, under " +
+			   ThreadedKernel.scheduler.getClass().getName());
+
+	long startTime = System.nanoTime();
+
+	for (int i=0; i<threads; i++)
+	    workers[i].fork();
+
+	long done = 0;
+	for (int checkpoint=1; checkpoint<=10; checkpoint++) {
+	    long next = (long) ticks * checkpoint / 10;
+	    ThreadedKernel.alarm.waitUntil(next - done);
+	    done = next;
+	    printError();
+	}
+
+	stopped = true;
+	for (int i=0; i<threads; i++)
+	    workers[i].join();
+
+	System.out.println("Share: ran " + ticks + " ticks in "
+			   + ((System.nanoTime() - startTime) / 1000000)
+			   + " ms");
+
+	done();
+    }
+
+    private void printError() {
+	long totalUnits = 0;
+	for (int i=0; i<threads; i++)
+	    totalUnits += units[i];
+
+	long totalTickets = (long) threads * (threads+1) / 2;
+
+	double max = 0, sum = 0;
+	for (int i=0; i<threads; i++) {
+	    double share = (totalUnits == 0) ? 0 :
+		(double) units[i] / totalUnits;
+	    double error = Math.abs(share - (double) (i+1) / totalTickets);
+	    max = Math.max(max, error);
+	    sum += error;
+	}
+
+	System.out.println("  " + totalUnits + " units: share error mean "
+			   + format(sum / threads) + "%, max " + format(max)
+			   + "%");
+    }
+
+    private static String format(double fraction) {
+	return String.valueOf(Math.round(fraction * 100000) / 1000.0);
+    }
+
+    private int threads, ticks, unit;
+    private long[] units;
+    private boolean stopped = false;
+}
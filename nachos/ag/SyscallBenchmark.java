@@ -0,0 +1,108 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+/**
+ * An autograder that measures the cost of a system call round trip. The
+ * program passed to the kernel is ignored; in its place the autograder loads
+ * a small program that calls <tt>close(-1)</tt> in a loop, and then calls
+ * <tt>halt()</tt>. The wall-clock time from the first call to the
+ * <tt>halt()</tt> is reported per call.
+ *
+ * <p>
+ * Run it with, for example,
+ * <tt>nachos -- nachos.ag.SyscallBenchmark -# calls=1000000 -x halt.coff</tt>
+ * in a user program project.
+ */
+public class SyscallBenchmark extends AutoGrader {
+    /**
+     * Allocate a new syscall benchmark.
+     */
+    public SyscallBenchmark() {
+    }
+
+    void init() {
+	calls = getIntegerArgument("calls", 100000);
+	Lib.assertTrue(calls > 0, "calls must be positive");
+    }
+
+    public boolean exceptionHandler(Privilege privilege) {
+	Processor processor = Machine.processor();
+
+	if (processor.readRegister(Processor.regCause) ==
+	    Processor.exceptionSyscall) {
+	    if (processor.readRegister(Processor.regV0) == syscallHalt)
+		report();
+	    else if (count++ == 0)
+		startTime = System.nanoTime();
+	}
+
+	return super.exceptionHandler(privilege);
+    }
+
+    public Coff createLoader(OpenFile file) {
+	return new BenchmarkCoff();
+    }
+
+    private void report() {
+	long elapsed = System.nanoTime() - startTime;
+
+	System.out.println("Syscall round trip: " + count + " calls in "
+			   + (elapsed / 1000000) + " ms ("
+			   + (elapsed / Math.max(count, 1)) + " ns/call)");
+    }
+
+    /**
+     * A loader for the benchmark program, a single executable page at
+     * virtual address 0.
+     */
+    private class BenchmarkCoff extends Coff {
+	BenchmarkCoff() {
+	    entryPoint = 0;
+	    sections = new CoffSection[] {
+		new CoffSection(this, ".text", true, true, 1, 0) {
+		    public void loadPage(int spn, int ppn) {
+			Lib.assertTrue(spn == 0);
+
+			byte[] memory = Machine.processor().getMemory();
+			int paddr = ppn*Processor.pageSize;
+
+			for (int i=0; i<Processor.pageSize/4; i++) {
+			    int word = (i < program.length) ? program[i] : 0;
+			    Lib.bytesFromInt(memory, paddr + i*4, word);
+			}
+		    }
+		}
+	    };
+	}
+
+	public int getEntryPoint() {
+	    return entryPoint;
+	}
+
+	public void close() {
+	}
+
+	private final int[] program = {
+	    0x3C100000 | (calls >>> 16),	// lui	s0, %hi(calls)
+	    0x36100000 | (calls & 0xFFFF),	// ori	s0, s0, %lo(calls)
+	    0x24020000 | syscallClose,		// loop: li v0, syscallClose
+	    0x2404FFFF,				// li	a0, -1
+	    0x0000000C,				// syscall
+	    0x2610FFFF,				// addiu s0, s0, -1
+	    0x1600FFFB,				// bnez	s0, loop
+	    0x00000000,				// nop
+	    0x24020000 | syscallHalt,		// li	v0, syscallHalt
+	    0x0000000C,				// syscall
+	    0x08000009,				// j	0x24
+	    0x00000000,				// nop
+	};
+    }
+
+    private int calls;
+    private int count = 0;
+    private long startTime;
+
+    private static final int syscallHalt = 0, syscallClose = 8;
+}
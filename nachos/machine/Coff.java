@@ -89,6 +89,9 @@ public class Coff {
 		    throw e;
 		}
 	    }
+
+	    if (Machine.profiler() != null)
+		Machine.profiler().addProgram(file, this);
 	}
     }
 
@@ -4,9 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +54,8 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[16];
+	numPending = 0;
     }
 
     /**
@@ -120,17 +122,47 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Wait for the next interrupt, as a processor does when no thread is
+     * ready to run. Simulated time advances straight to the next pending
+     * interrupt, and its handler is invoked, so that an idle kernel need not
+     * spin until the interrupt comes due. Interrupts must be enabled.
+     *
+     * <p>
+     * The idle time is counted as kernel ticks and ends on the same tick as
+     * if the caller had enabled interrupts over and over, each time advancing
+     * simulated time by <tt>Stats.KernelTick</tt>, until the interrupt
+     * occurred.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled());
+
+	// tracing interrupts requires every tick to be checked
+	if (numPending > 0 && !Lib.test(dbgInt)) {
+	    Stats stats = privilege.stats;
+	    
+	    long untilDue = pending[0].time - stats.totalTicks;
+
+	    // skip all but the tick that reaches the deadline
+	    long skip = Math.max(0, (untilDue-1) / Stats.KernelTick);
+	    stats.kernelTicks += skip * Stats.KernelTick;
+	    stats.totalTicks += skip * Stats.KernelTick;
+	}
+
+	tick(true);
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocate(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	add(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +185,29 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long tickBudget() {
+	// tracing interrupts requires every tick to be checked
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	long untilDue = pending[0].time - privilege.stats.totalTicks;
+
+	// the tick that reaches the deadline must go through tick()
+	return Math.max(0, (untilDue-1) / Stats.UserTick);
+    }
+
+    private void settleTicks(long count) {
+	Lib.assertTrue(count >= 0 && count <= tickBudget());
+	
+	Stats stats = privilege.stats;
+
+	stats.userTicks += count * Stats.UserTick;
+	stats.totalTicks += count * Stats.UserTick;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +216,25 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (numPending == 0 || pending[0].time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pending[0].time <= time) {
+	    PendingInterrupt next = removeFirst();
 
-	    Lib.assertTrue(next.time <= time);
+	    // the handler may schedule more, so recycle this entry first
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    free(next);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,8 +245,10 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+	
+	for (PendingInterrupt toOccur : sorted) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,18 +256,143 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Write the pending interrupts to a snapshot: the type of each, and
+     * the time at which it is due.
+     *
+     * @param	out	the snapshot stream.
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	out.writeInt(numPending);
+	for (PendingInterrupt toOccur : sorted) {
+	    out.writeUTF(toOccur.type);
+	    out.writeLong(toOccur.time);
 	}
+    }
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+    /**
+     * Load the pending interrupts from a snapshot. Their handlers cannot be
+     * saved, so the devices must already have scheduled interrupts of the
+     * same types as were pending when the snapshot was written; each is
+     * moved to the time at which the saved one was due.
+     *
+     * @param	in	the snapshot stream.
+     */
+    void readSnapshot(DataInputStream in) throws IOException {
+	Lib.assertTrue(in.readInt() == numPending,
+		       "snapshot has different pending interrupts");
+
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	boolean[] matched = new boolean[numPending];
+	for (int i=0; i<numPending; i++) {
+	    String type = in.readUTF();
+	    long time = in.readLong();
+
+	    int j = 0;
+	    while (j < numPending &&
+		   (matched[j] || !sorted[j].type.equals(type)))
+		j++;
+	    Lib.assertTrue(j < numPending, "snapshot has a pending " + type
+			   + " interrupt that was not scheduled");
+
+	    matched[j] = true;
+	    sorted[j].time = time;
+	    sorted[j].id = numPendingInterruptsCreated++;
+	    pending[i] = sorted[j];
+	}
+
+	// they were saved in order, which makes a heap
+    }
+
+    /**
+     * Take a pending interrupt entry from the free list, or allocate one if
+     * the free list is empty.
+     */
+    private PendingInterrupt allocate(long time, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.nextFree;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
+	return toOccur;
+    }
+
+    /**
+     * Return a pending interrupt entry to the free list.
+     */
+    private void free(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.nextFree = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add an entry to the heap of pending interrupts.
+     */
+    private void add(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, pending.length*2);
+
+	// sift up
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (pending[parent].compareTo(toOccur) <= 0)
+		break;
+
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	pending[i] = toOccur;
+    }
+
+    /**
+     * Remove and return the earliest entry in the heap of pending interrupts.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0) {
+	    // sift down
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numPending)
+		    break;
+		if (child+1 < numPending &&
+		    pending[child+1].compareTo(pending[child]) < 0)
+		    child++;
+		if (last.compareTo(pending[child]) <= 0)
+		    break;
+
+		pending[i] = pending[child];
+		i = child;
+	    }
+	    pending[i] = last;
+	}
+
+	return first;
+    }
 
-	    // can't return 0 for unequal objects, so check all fields
+    private static class PendingInterrupt
+	implements Comparable<PendingInterrupt> {
+	public int compareTo(PendingInterrupt toOccur) {
+	    // interrupts due at the same time occur in the order scheduled
 	    if (time < toOccur.time)
 		return -1;
 	    else if (time > toOccur.time)
@@ -230,6 +410,8 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	/** The next entry on the free list. */
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +419,14 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /**
+     * The pending interrupts, as a binary heap ordered by time and then by
+     * the order they were scheduled in. Entries are recycled through
+     * <tt>freeList</tt> once they occur.
+     */
+    private PendingInterrupt[] pending;
+    private int numPending;
+    private PendingInterrupt freeList = null;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +438,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long tickBudget() {
+	    return Interrupt.this.tickBudget();
+	}
+
+	public void settleTicks(long count) {
+	    Interrupt.this.settleTicks(count);
+	}
     }
 }
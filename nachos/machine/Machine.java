@@ -6,6 +6,9 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.PrivilegedAction;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -97,9 +100,50 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	if (profiler != null)
+	    profiler.print();
 	terminate();
     }
 
+    /**
+     * Add a report of statistics kept by the kernel, to be printed with the
+     * machine's statistics when Nachos halts.
+     *
+     * @param	report	prints the statistics.
+     */
+    public static void addStatistics(Runnable report) {
+	stats.addReport(report);
+    }
+
+    /**
+     * Return the number of bytes of memory the Java thread running the
+     * current thread has allocated so far, or -1 if the Java virtual machine
+     * cannot tell. Kernel benchmarks use this to measure allocation.
+     *
+     * @return	the bytes allocated by the current Java thread.
+     */
+    public static long allocatedBytes() {
+	Long bytes = privilege.doPrivileged(new PrivilegedAction<Long>() {
+		public Long run() {
+		    try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+			    return ((com.sun.management.ThreadMXBean) bean)
+				.getThreadAllocatedBytes(Thread.currentThread()
+							 .getId());
+			}
+		    }
+		    catch (RuntimeException e) {
+		    }
+		    catch (LinkageError e) {
+		    }
+		    return Long.valueOf(-1);
+		}
+	    });
+
+	return bytes.longValue();
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -143,6 +187,21 @@ public final class Machine {
 			Lib.assertNotReached("bad value for -s switch");
 		    }
 		}
+		else if (arg.equals("-snapshot")) {
+		    Lib.assertTrue(i+1 < args.length,
+				   "switch without argument");
+		    try {
+			snapshotTime = Long.parseLong(args[i++]);
+		    }
+		    catch (NumberFormatException e) {
+			Lib.assertNotReached("bad value for -snapshot switch");
+		    }
+		    snapshotFileName = args[i++];
+		}
+		else if (arg.equals("-restore")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    restoreFileName = args[i++];
+		}
 		else if (arg.equals("-x")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    shellProgramName = args[i++];		    
@@ -176,6 +235,8 @@ public final class Machine {
 	if (Config.getBoolean("Machine.processor")) {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
+	    if (Config.getBoolean("Processor.profile", false))
+		profiler = new Profiler(privilege, testDirectory);
 	    processor = new Processor(privilege, numPhysPages);
 	}				      
 
@@ -351,6 +412,13 @@ public final class Machine {
      */
     public static AutoGrader autoGrader() { return autoGrader; }
 
+    /**
+     * Return the user program profiler.
+     *
+     * @return	the profiler, or <tt>null</tt> if profiling is disabled.
+     */
+    public static Profiler profiler() { return profiler; }
+
     private static Interrupt interrupt = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
@@ -359,6 +427,7 @@ public final class Machine {
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
+    private static Profiler profiler = null;
 
     private static String autoGraderClassName = "nachos.ag.AutoGrader";
 
@@ -379,6 +448,34 @@ public final class Machine {
 
     private static String shellProgramName = null;
 
+    /**
+     * Return the file that the <tt>-snapshot</tt> switch asked for a
+     * snapshot to be written to.
+     *
+     * @return	the snapshot file name, or <tt>null</tt>.
+     */
+    static String getSnapshotFileName() { return snapshotFileName; }
+
+    /**
+     * Return the time at which the <tt>-snapshot</tt> switch asked for a
+     * snapshot to be written.
+     *
+     * @return	the snapshot time, in ticks.
+     */
+    static long getSnapshotTime() { return snapshotTime; }
+
+    /**
+     * Return the snapshot that the <tt>-restore</tt> switch asked to resume
+     * from.
+     *
+     * @return	the snapshot file name, or <tt>null</tt>.
+     */
+    static String getRestoreFileName() { return restoreFileName; }
+
+    private static String snapshotFileName = null;
+    private static long snapshotTime = 0;
+    private static String restoreFileName = null;
+
     /**
      * Return the name of the process class that the kernel should use. In
      * the multi-programming project, returns
@@ -433,6 +530,19 @@ public final class Machine {
 	"\t\tSpecify the seed for the random number generator (seed is a\n" +
 	"\t\tlong).\n" +
 	"\n" +
+	"\t-snapshot <ticks> <file>\n" +
+	"\t\tWrite a pre-trap user snapshot to a file once the simulated\n" +
+	"\t\ttime reaches the specified number of ticks: the registers,\n" +
+	"\t\tmemory and pending interrupts of a single user program that\n" +
+	"\t\thas not yet made a system call or caused an exception. Kernel\n" +
+	"\t\tstate is not saved, so nothing is written once the program\n" +
+	"\t\thas trapped.\n" +
+	"\n" +
+	"\t-restore <file>\n" +
+	"\t\tBoot the kernel and load the program as usual, then resume it\n" +
+	"\t\tfrom a pre-trap user snapshot. The program must be the one\n" +
+	"\t\tthe snapshot was written from.\n" +
+	"\n" +
 	"\t-x <program>\n" +
 	"\t\tSpecify a program that UserKernel.run() should execute,\n" +
 	"\t\tinstead of the value of the configuration variable\n" +
@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -34,6 +41,10 @@ public final class Processor {
 	this.privilege = privilege;
 	privilege.processor = new ProcessorPrivilege();
 
+	snapshotFile = Machine.getSnapshotFileName();
+	snapshotTime = Machine.getSnapshotTime();
+	restoreFile = Machine.getRestoreFileName();
+
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
 
@@ -46,14 +57,52 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	memory = ByteBuffer.wrap(mainMemory).order(ByteOrder.LITTLE_ENDIAN);
+	decodeCache = new DecodedInstruction[numPhysPages][];
+
+	tracing = Lib.test(dbgProcessor);
+	readCacheVPN = new int[translationCacheSize];
+	readCacheBase = new int[translationCacheSize];
+	readCacheSet = new int[translationCacheSize];
+	writeCacheVPN = new int[translationCacheSize];
+	writeCacheBase = new int[translationCacheSize];
+	writeCacheSet = new int[translationCacheSize];
+	flushTranslationCache();
+
+	profiler = Machine.profiler();
+
+	usingBlockEngine = Config.getBoolean("Processor.blockEngine", false);
+	if (usingBlockEngine)
+	    blockCache = new Block[numPhysPages][];
 
 	if (usingTLB) {
+	    if (Config.getBoolean("Processor.variableTLB", false)) {
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbWays = Config.getInteger("Processor.tlbAssociativity", 0);
+		tlbRefill = Config.getBoolean("Processor.tlbRefill", false);
+	    }
+	    // an associativity of 0 means fully associative
+	    if (tlbWays == 0)
+		tlbWays = tlbSize;
+
+	    Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize%tlbWays == 0,
+			   "TLB size must be a multiple of its associativity");
+	    tlbSets = tlbSize / tlbWays;
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+	    tlbNext = new int[tlbSets];
+
+	    tlbHits = privilege.stats.tlbHits = new long[tlbSets];
+	    tlbMisses = privilege.stats.tlbMisses = new long[tlbSets];
+	    tlbEvictions = privilege.stats.tlbEvictions = new long[tlbSets];
 	}
 	else {
 	    translations = null;
+
+	    // translation cache hits still count somewhere
+	    tlbHits = new long[1];
 	}
     }
 
@@ -91,18 +140,157 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	if (restoreFile != null) {
+	    Snapshot.restore(privilege, restoreFile, this);
+	    restoreFile = null;
+	}
+
 	Instruction inst = new Instruction();
+
+	// the block engine cannot produce per-instruction traces or profiles
+	boolean useBlocks = usingBlockEngine && profiler == null &&
+	    !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble);
+
+	// the kernel may have changed anything since this thread last ran
+	enterKernel();
 	
 	while (true) {
 	    try {
+		/* Run as many instructions as can execute before the next
+		 * interrupt comes due, without ticking after each one, and
+		 * account for them in one step.
+		 */
+		long budget = Math.min(privilege.interrupt.tickBudget(),
+				       maxBatch);
+		if (snapshotFile != null) {
+		    budget = Math.min(budget, Math.max(0, snapshotTime -
+						       privilege.stats.totalTicks));
+		}
+		
+		while (batched < budget) {
+		    if (useBlocks)
+			runBlock(inst, (int) budget);
+		    else {
+			inst.run();
+			batched++;
+		    }
+		}
+
+		settleTicks();
+
+		if (snapshotFile != null &&
+		    privilege.stats.totalTicks >= snapshotTime) {
+		    Snapshot.save(privilege, snapshotFile, this);
+		    snapshotFile = null;
+		}
+
+		// an interrupt may be due after this one
 		inst.run();
+		privilege.interrupt.tick(false);
 	    }
 	    catch (MipsException e) {
+		if (profiler != null)
+		    profiler.exception(registers[regPC]);
+		
+		settleTicks();
+
+		// a snapshot cannot hold the kernel state left by handling it
+		if (snapshotFile != null) {
+		    System.out.println("snapshot not written: the program "
+				       + "trapped into the kernel before tick "
+				       + snapshotTime);
+		    snapshotFile = null;
+		}
+
 		e.handle();
+		privilege.interrupt.tick(false);
 	    }
+	}
+    }
 
-	    privilege.interrupt.tick(false);
+    /**
+     * Account for the instructions executed since the last tick.
+     */
+    private void settleTicks() {
+	if (batched > 0) {
+	    privilege.interrupt.settleTicks(batched);
+	    batched = 0;
+	}
+    }
+
+    /**
+     * Execute the translated basic block starting at the current PC, stopping
+     * early once <tt>batched</tt> reaches <i>limit</i>. Each instruction
+     * executed is counted in <tt>batched</tt> rather than ticked, so no
+     * interrupt can arrive inside a block. The block is abandoned as soon as
+     * a store hits the page the block came from or the PC leaves the
+     * straight-line path, so that the next instruction is fetched through the
+     * normal translation path.
+     *
+     * @param	inst	the interpreter, used for instructions that have no
+     *			specialized operation.
+     * @param	limit	the value of <tt>batched</tt> at which to stop.
+     * @exception	MipsException	if an instruction raises an exception.
+     *				All preceding instructions have completed, and
+     *				the PC identifies the faulting instruction.
+     */
+    private void runBlock(Instruction inst, int limit) throws MipsException {
+	int pc = registers[regPC];
+	int paddr = translate(pc, 4, false);
+
+	Block block = lookupBlock(paddr);
+	BlockOp[] ops = block.ops;
+
+	executingPage = block.ppn;
+	leaveBlock = false;
+
+	for (int i=0; i<ops.length && batched<limit; i++) {
+	    ops[i].run(inst);
+	    batched++;
+
+	    pc += 4;
+	    if (leaveBlock || registers[regPC] != pc)
+		break;
 	}
+
+	executingPage = -1;
+    }
+
+    /**
+     * Return the basic block that starts at physical address <i>paddr</i>,
+     * translating it if necessary. Blocks are cached per physical page, like
+     * predecoded instructions. After the kernel has run, a cached block is
+     * checked against the words in memory before it is used again, since the
+     * kernel may have written the page through <tt>getMemory()</tt>.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the basic block.
+     */
+    private Block lookupBlock(int paddr) {
+	int ppn = paddr/pageSize;
+	int index = (paddr%pageSize) / 4;
+
+	Block[] page = blockCache[ppn];
+	if (page == null) {
+	    page = new Block[pageSize/4];
+	    blockCache[ppn] = page;
+	}
+
+	Block block = page[index];
+	if (block != null && block.checked != kernelEntries) {
+	    if (block.matchesMemory())
+		block.checked = kernelEntries;
+	    else
+		block = null;
+	}
+
+	if (block == null) {
+	    block = new Block(ppn, index);
+	    page[index] = block;
+	}
+
+	return block;
     }
 
     /**
@@ -159,9 +347,9 @@ public final class Processor {
      * @return	the current page table.
      */
     public TranslationEntry[] getPageTable() {
-	Lib.assertTrue(!usingTLB);
+	Lib.assertTrue(!usingTLB || tlbRefill);
 
-	return translations;
+	return usingTLB ? pageTable : translations;
     }
 
     /**
@@ -169,12 +357,27 @@ public final class Processor {
      * the specified page table. The size of the current address space will be
      * determined from the length of the page table array.
      *
+     * <p>
+     * With a hardware-managed TLB, the page table is only consulted on a TLB
+     * miss, and setting it invalidates every TLB entry.
+     *
      * @param	pageTable	the page table to use.
      */
     public void setPageTable(TranslationEntry[] pageTable) {
-	Lib.assertTrue(!usingTLB);
+	Lib.assertTrue(!usingTLB || tlbRefill);
 
-	this.translations = pageTable;
+	if (usingTLB) {
+	    this.pageTable = pageTable;
+	    for (int i=0; i<tlbSize; i++) {
+		if (translations[i].valid)
+		    tlbEvictions[i/tlbWays]++;
+		translations[i] = new TranslationEntry();
+	    }
+	}
+	else {
+	    this.translations = pageTable;
+	}
+	flushTranslationCache();
     }
 
     /**
@@ -188,6 +391,43 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB, that is, the number
+     * of entries in each set. The TLB is divided into
+     * <tt>getTLBSize() / getTLBAssociativity()</tt> sets, with entries
+     * <i>s</i>*<tt>getTLBAssociativity()</tt> through
+     * (<i>s</i>+1)*<tt>getTLBAssociativity()</tt>-1 forming set <i>s</i>. A
+     * translation for virtual page <i>vpn</i> can only be found in set
+     * <i>vpn</i> mod (number of sets). An associativity of 1 is a
+     * direct-mapped TLB; an associativity equal to <tt>getTLBSize()</tt> is
+     * a fully associative TLB.
+     *
+     * @return	the number of entries in each TLB set.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Test whether this processor refills its TLB from a page table itself.
+     *
+     * <p>
+     * If <tt>true</tt>, a TLB miss is handled by the processor, which looks
+     * up the page table set by <tt>setPageTable()</tt> and replaces the oldest
+     * entry in the set. Only a missing or invalid page table entry causes an
+     * exception, a page fault. The TLB holds references to page table
+     * entries, so the used and dirty bits are set in the page table directly.
+     *
+     * @return	<tt>true</tt> if this processor has a hardware-managed TLB.
+     */
+    public boolean hasTLBRefill() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbRefill;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +445,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * By default the TLB is fully associative, so the location of an entry
+     * within the TLB does not affect anything. Otherwise a valid entry must
+     * be placed in the set for its virtual page; see
+     * <tt>getTLBAssociativity()</tt>.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +456,14 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid || entry.vpn%tlbSets == number/tlbWays);
+
+	TranslationEntry old = translations[number];
+	if (old.valid && (!entry.valid || entry.vpn != old.vpn))
+	    tlbEvictions[number/tlbWays]++;
 
 	translations[number] = new TranslationEntry(entry);
+	flushTranslationCache();
     }
 
     /**
@@ -279,6 +527,123 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Write the state of this processor and of physical memory to a
+     * snapshot.
+     *
+     * @param	out	the snapshot stream.
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+	for (int i=0; i<numUserRegisters; i++)
+	    out.writeInt(registers[i]);
+	out.writeInt(loadTarget);
+	out.writeInt(loadMask);
+	out.writeInt(loadValue);
+
+	TranslationEntry[] entries = usingTLB ? translations : getPageTable();
+	out.writeBoolean(usingTLB);
+	out.writeInt(entries == null ? 0 : entries.length);
+	for (int i=0; entries != null && i<entries.length; i++) {
+	    TranslationEntry entry = entries[i];
+	    out.writeBoolean(entry != null);
+	    if (entry != null) {
+		out.writeInt(entry.vpn);
+		out.writeInt(entry.ppn);
+		out.writeBoolean(entry.valid);
+		out.writeBoolean(entry.readOnly);
+		out.writeBoolean(entry.used);
+		out.writeBoolean(entry.dirty);
+	    }
+	}
+
+	out.writeInt(mainMemory.length);
+	out.write(mainMemory);
+    }
+
+    /**
+     * Load the state of this processor and of physical memory from a
+     * snapshot. With a page table, the kernel must already have set up the
+     * same translations that were saved; only their used and dirty bits are
+     * restored. A software-managed TLB is restored as saved.
+     *
+     * @param	in	the snapshot stream.
+     */
+    void readSnapshot(DataInputStream in) throws IOException {
+	for (int i=0; i<numUserRegisters; i++)
+	    registers[i] = in.readInt();
+	loadTarget = in.readInt();
+	loadMask = in.readInt();
+	loadValue = in.readInt();
+
+	Lib.assertTrue(in.readBoolean() == usingTLB,
+		       "snapshot is of a different translation mechanism");
+	
+	int length = in.readInt();
+	TranslationEntry[] entries = usingTLB ? translations : getPageTable();
+	Lib.assertTrue(length == (entries == null ? 0 : entries.length),
+		       "snapshot is of a different page table");
+
+	for (int i=0; i<length; i++) {
+	    if (!in.readBoolean()) {
+		Lib.assertTrue(usingTLB || entries[i] == null,
+			       "snapshot is of a different page table");
+		continue;
+	    }
+	    
+	    TranslationEntry entry = new TranslationEntry(in.readInt(),
+							  in.readInt(),
+							  in.readBoolean(),
+							  in.readBoolean(),
+							  in.readBoolean(),
+							  in.readBoolean());
+	    if (usingTLB) {
+		// a hardware-managed TLB can refill itself
+		if (!tlbRefill)
+		    entries[i] = entry;
+	    }
+	    else {
+		Lib.assertTrue(entries[i] != null &&
+			       entries[i].vpn == entry.vpn &&
+			       entries[i].ppn == entry.ppn &&
+			       entries[i].valid == entry.valid &&
+			       entries[i].readOnly == entry.readOnly,
+			       "snapshot is of a different page table");
+		entries[i].used = entry.used;
+		entries[i].dirty = entry.dirty;
+	    }
+	}
+
+	Lib.assertTrue(in.readInt() == mainMemory.length,
+		       "snapshot has a different amount of memory");
+	in.readFully(mainMemory);
+
+	// nothing cached from the old memory contents is valid
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    decodeCache[ppn] = null;
+	    if (usingBlockEngine)
+		blockCache[ppn] = null;
+	}
+	enterKernel();
+    }
+
+    /**
+     * Note that kernel code is about to run. The kernel may change page
+     * tables, TLB entries and physical memory while it runs, so the
+     * translation cache is flushed and cached blocks must be checked again.
+     */
+    private void enterKernel() {
+	kernelEntries++;
+	flushTranslationCache();
+    }
+
+    /**
+     * Empty the translation cache.
+     */
+    private void flushTranslationCache() {
+	Arrays.fill(readCacheVPN, -1);
+	Arrays.fill(writeCacheVPN, -1);
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -294,6 +659,23 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
+	// try the translation cache first, unless tracing
+	if (!tracing && (vaddr & (size-1)) == 0) {
+	    int vpn = vaddr >>> pageShift;
+	    int slot = vpn & (translationCacheSize-1);
+
+	    if (writing) {
+		if (writeCacheVPN[slot] == vpn) {
+		    tlbHits[writeCacheSet[slot]]++;
+		    return writeCacheBase[slot] | (vaddr & (pageSize-1));
+		}
+	    }
+	    else if (readCacheVPN[slot] == vpn) {
+		tlbHits[readCacheSet[slot]]++;
+		return readCacheBase[slot] | (vaddr & (pageSize-1));
+	    }
+	}
+	
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -301,7 +683,7 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw exception.raise(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -309,6 +691,7 @@ public final class Processor {
 	int offset = offsetFromAddress(vaddr);
 
 	TranslationEntry entry = null;
+	int set = 0;
 
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
@@ -317,14 +700,15 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw exception.raise(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB entries in vpn's set for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
+	    set = vpn % tlbSets;
+	    for (int i=set*tlbWays; i<(set+1)*tlbWays; i++) {
 		if (translations[i].valid && translations[i].vpn == vpn) {
 		    entry = translations[i];
 		    break;
@@ -332,22 +716,29 @@ public final class Processor {
 	    }
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
+		tlbMisses[set]++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		if (!tlbRefill)
+		    throw exception.raise(exceptionTLBMiss, vaddr);
+
+		entry = refillTLB(set, vpn, vaddr);
+	    }
+	    else {
+		tlbHits[set]++;
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw exception.raise(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw exception.raise(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -357,11 +748,77 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
+	/* Remember the translation. The used bit (and for a write, the dirty
+	 * bit) is already set, and only the kernel can clear it, so hits can
+	 * skip the entry until the cache is next flushed.
+	 */
+	if (!tracing) {
+	    int slot = vpn & (translationCacheSize-1);
+	    
+	    readCacheVPN[slot] = vpn;
+	    readCacheBase[slot] = ppn*pageSize;
+	    readCacheSet[slot] = set;
+	    if (writing) {
+		writeCacheVPN[slot] = vpn;
+		writeCacheBase[slot] = ppn*pageSize;
+		writeCacheSet[slot] = set;
+	    }
+	}
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Handle a TLB miss in hardware, by loading the page table entry for
+     * <i>vpn</i> into the specified TLB set. An invalid entry in the set is
+     * replaced if there is one, otherwise the entries in the set are replaced
+     * in FIFO order.
+     *
+     * @param	set	the TLB set that missed.
+     * @param	vpn	the virtual page number that missed.
+     * @param	vaddr	the virtual address being translated.
+     * @return	the new TLB entry.
+     * @exception	MipsException	if the page table has no valid entry for
+     *					<i>vpn</i>.
+     */
+    private TranslationEntry refillTLB(int set, int vpn, int vaddr)
+	throws MipsException {
+	if (pageTable == null || vpn >= pageTable.length ||
+	    pageTable[vpn] == null ||
+	    !pageTable[vpn].valid) {
+	    privilege.stats.numPageFaults++;
+	    Lib.debug(dbgProcessor, "\t\tpage fault");
+	    throw exception.raise(exceptionPageFault, vaddr);
+	}
+
+	int victim = -1;
+	for (int i=set*tlbWays; i<(set+1)*tlbWays; i++) {
+	    if (!translations[i].valid) {
+		victim = i;
+		break;
+	    }
+	}
+	if (victim == -1) {
+	    victim = set*tlbWays + tlbNext[set];
+	    tlbNext[set] = (tlbNext[set]+1) % tlbWays;
+	    tlbEvictions[set]++;
+
+	    // the translation cache may still hold the evicted page
+	    int evicted = translations[victim].vpn;
+	    int slot = evicted & (translationCacheSize-1);
+	    if (readCacheVPN[slot] == evicted)
+		readCacheVPN[slot] = -1;
+	    if (writeCacheVPN[slot] == evicted)
+		writeCacheVPN[slot] = -1;
+	}
+
+	Lib.debug(dbgProcessor, "\t\tTLB refill, entry " + victim);
+	translations[victim] = pageTable[vpn];
+	return translations[victim];
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -378,8 +835,20 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int paddr = translate(vaddr, size, false);
+	int value;
+
+	switch (size) {
+	case 1:
+	    value = memory.get(paddr);
+	    break;
+	case 2:
+	    value = memory.getShort(paddr);
+	    break;
+	default:
+	    value = memory.getInt(paddr);
+	    break;
+	}
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -405,9 +874,61 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	switch (size) {
+	case 1:
+	    memory.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    memory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memory.putInt(paddr, value);
+	    break;
+	}
+
+	// drop any instructions predecoded or translated from this page
+	int ppn = paddr/pageSize;
+	decodeCache[ppn] = null;
+	if (usingBlockEngine) {
+	    blockCache[ppn] = null;
+	    if (ppn == executingPage)
+		leaveBlock = true;
+	}
+    }
+
+    /**
+     * Return the predecoded form of the instruction word <i>value</i>, which
+     * was fetched from physical address <i>paddr</i>. Decoded instructions
+     * are cached per physical page. A page's cache is dropped whenever
+     * <tt>writeMem()</tt> stores to it, and each entry remembers the raw word
+     * it was decoded from, so writes the kernel makes directly through
+     * <tt>getMemory()</tt> are caught when the word is next fetched.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction predecode(int paddr, int value) {
+	int ppn = paddr/pageSize;
+	
+	DecodedInstruction[] page = decodeCache[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodeCache[ppn] = page;
+	}
+
+	int index = (paddr%pageSize) / 4;
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
     }
 
     /**
@@ -541,20 +1062,97 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays = 0;
+    /** Number of TLB sets. */
+    private int tlbSets;
+    /** <tt>true</tt> if TLB misses are handled by the processor. */
+    private boolean tlbRefill = false;
+    /** The next entry to replace in each TLB set, for hardware refill. */
+    private int[] tlbNext;
+    /** The page table used to refill a hardware-managed TLB. */
+    private TranslationEntry[] pageTable;
+    /** Per-set TLB statistics, shared with <tt>Stats</tt>. */
+    private long[] tlbHits, tlbMisses, tlbEvictions;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /**
+     * A direct-mapped cache of recent successful translations, indexed by the
+     * low bits of the virtual page number, that sits in front of the page
+     * table or TLB. Writes are cached separately from reads, since only a
+     * write sets the dirty bit. A virtual page number of -1 marks an empty
+     * slot. The cache is flushed whenever the kernel runs or changes the
+     * page table or a TLB entry. Each slot also records the TLB set its
+     * translation came from, so hits can be counted against that set.
+     */
+    private int[] readCacheVPN, readCacheBase, readCacheSet;
+    private int[] writeCacheVPN, writeCacheBase, writeCacheSet;
+    /** Number of translation cache slots. Must be a power of 2. */
+    private static final int translationCacheSize = 64;
+    /** <tt>true</tt> if processor tracing was enabled on the command line. */
+    private boolean tracing;
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
+    /** Log base 2 of the page size. */
+    private static final int pageShift = Integer.numberOfTrailingZeros(pageSize);
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
+    /**
+     * The file to write a snapshot to when the time reaches
+     * <tt>snapshotTime</tt>, or <tt>null</tt>.
+     */
+    private String snapshotFile = null;
+    private long snapshotTime;
+    /**
+     * The snapshot to restore when a user program first runs, or
+     * <tt>null</tt>.
+     */
+    private String restoreFile = null;
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * A little-endian view of <tt>mainMemory</tt>, so that aligned halfwords
+     * and words can be read and written in one operation.
+     */
+    private ByteBuffer memory;
+    /**
+     * Predecoded instructions, indexed by physical page number and then by
+     * word offset within the page. A <tt>null</tt> page has nothing cached.
+     */
+    private DecodedInstruction[][] decodeCache;
+
+    /** The profiler to report instructions to, or <tt>null</tt>. */
+    private Profiler profiler;
+
+    /** <tt>true</tt> if user code runs through the basic-block engine. */
+    private boolean usingBlockEngine;
+    /**
+     * Translated basic blocks, indexed like <tt>decodeCache</tt> by physical
+     * page number and word offset of the first instruction.
+     */
+    private Block[][] blockCache;
+    /**
+     * Counts the times the kernel may have run since user code last ran:
+     * exceptions, interrupt handlers and calls to <tt>run()</tt>.
+     */
+    private int kernelEntries = 0;
+    /** The physical page of the block being executed, or -1. */
+    private int executingPage = -1;
+    /** Set when a store hits the page of the block being executed. */
+    private boolean leaveBlock = false;
+    /** The number of instructions executed since the last tick. */
+    private int batched = 0;
+    /** The maximum number of instructions to execute between ticks. */
+    private static final long maxBatch = 0x10000;
+    /** The maximum number of instructions in a basic block. */
+    private static final int maxBlockLength = 64;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -566,21 +1164,40 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+
+	    // an interrupt handler is about to run
+	    enterKernel();
 	}
     }
 
+    /**
+     * The exception thrown for every user exception. An exception is always
+     * caught and handled by <tt>run()</tt> before the next one can be raised,
+     * and <tt>handle()</tt> copies the cause into the registers before any
+     * kernel code runs, so one exception object can be reused for all of them.
+     */
+    private final MipsException exception = new MipsException();
+
     private class MipsException extends Exception {
-	public MipsException(int cause) {
+	public MipsException() {
+	    // thrown and caught within the processor, so no stack trace needed
+	    super(null, null, false, false);
+	}
+
+	public MipsException raise(int cause) {
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 	    this.cause = cause;
+	    hasBadVAddr = false;
+	    return this;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	public MipsException raise(int cause, int badVAddr) {
+	    raise(cause);
 
 	    hasBadVAddr = true;
 	    this.badVAddr = badVAddr;
+	    return this;
 	}
 
 	public void handle() {
@@ -594,6 +1211,8 @@ public final class Processor {
 
 	    finishLoad();
 
+	    enterKernel();
+
 	    Lib.assertTrue(exceptionHandler != null);
 
 	    // autograder might not want kernel to know about this exception
@@ -611,11 +1230,27 @@ public final class Processor {
 	public void run() throws MipsException {
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
-	    decode();
+	    DecodedInstruction info = predecode(paddr, value);
+	    if (profiler != null) {
+		// loads and stores are the last operation types
+		profiler.instruction(registers[regPC],
+				     info.operation >= Mips.LOAD);
+	    }
+	    decode(info);
 	    execute();
 	    writeBack();
 	}	
 
+	/**
+	 * Execute an instruction that has already been fetched and decoded,
+	 * on behalf of the block engine.
+	 */
+	public void run(DecodedInstruction info) throws MipsException {
+	    decode(info);
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +1261,53 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    paddr = translate(registers[regPC], 4, false);
+	    value = memory.getInt(paddr);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	private void decode(DecodedInstruction info) {
+	    op = info.op;
+	    rs = info.rs;
+	    rt = info.rt;
+	    rd = info.rd;
+	    sh = info.sh;
+	    func = info.func;
+	    target = info.target;
+	    imm = info.imm;
 
 	    operation = info.operation;
 	    name = info.name;
 	    format = info.format;
 	    flags = info.flags;
 
+	    size = info.size;
+	    dstReg = info.dstReg;
+
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + info.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -869,7 +1479,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw exception.raise(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +1549,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw exception.raise(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +1619,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw exception.raise(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +1629,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw exception.raise(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1052,7 +1662,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1673,407 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A straight-line run of instructions within one physical page, ending
+     * after the delay slot of the first branch or jump, at a syscall or
+     * illegal instruction, at the end of the page, or after
+     * <tt>maxBlockLength</tt> instructions.
+     */
+    private class Block {
+	Block(int ppn, int index) {
+	    this.ppn = ppn;
+	    this.index = index;
+
+	    int wordsInPage = pageSize/4;
+	    int length = 0;
+	    int[] scanned = new int[maxBlockLength];
+	    BlockOp[] translated = new BlockOp[maxBlockLength];
+	    boolean inDelaySlot = false;
+
+	    while (index+length < wordsInPage && length < maxBlockLength) {
+		int value = memory.getInt(ppn*pageSize + (index+length)*4);
+		DecodedInstruction info = new DecodedInstruction(value);
+
+		scanned[length] = value;
+		translated[length] = newBlockOp(info);
+		length++;
+
+		if (inDelaySlot)
+		    break;
+		if (Lib.test(Mips.BRANCH, info.flags))
+		    inDelaySlot = true;
+		else if (info.operation == Mips.SYSCALL ||
+			 info.operation == Mips.UNIMPL ||
+			 info.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    words = new int[length];
+	    ops = new BlockOp[length];
+	    System.arraycopy(scanned, 0, words, 0, length);
+	    System.arraycopy(translated, 0, ops, 0, length);
+
+	    checked = kernelEntries;
+	}
+
+	/**
+	 * Test whether physical memory still holds the words this block was
+	 * translated from.
+	 */
+	boolean matchesMemory() {
+	    int paddr = ppn*pageSize + index*4;
+	    for (int i=0; i<words.length; i++, paddr+=4) {
+		if (memory.getInt(paddr) != words[i])
+		    return false;
+	    }
+	    return true;
+	}
+
+	final int ppn, index;
+	final int[] words;
+	final BlockOp[] ops;
+	/** The value of <tt>kernelEntries</tt> when last checked. */
+	int checked;
+    }
+
+    /**
+     * Return the specialized operation for a decoded instruction. Common
+     * ALU, load, store, branch and jump instructions get their own
+     * operation; everything else runs through the interpreter.
+     *
+     * @param	info	the decoded instruction.
+     * @return	the operation that executes it.
+     */
+    private BlockOp newBlockOp(DecodedInstruction info) {
+	int flags = info.flags;
+	
+	switch (info.operation) {
+	case Mips.ADD:
+	case Mips.SUB:
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	case Mips.SLT:
+	case Mips.AND:
+	case Mips.OR:
+	case Mips.NOR:
+	case Mips.XOR:
+	case Mips.LUI:
+	    if (!Lib.test(Mips.OVERFLOW, flags))
+		return new AluOp(info);
+	    break;
+	case Mips.LOAD:
+	    return new LoadOp(info);
+	case Mips.STORE:
+	    return new StoreOp(info);
+	case Mips.BEQ:
+	case Mips.BNE:
+	case Mips.BLEZ:
+	case Mips.BGTZ:
+	case Mips.BLTZ:
+	case Mips.BGEZ:
+	    if (!Lib.test(Mips.LINK, flags))
+		return new BranchOp(info);
+	    break;
+	case Mips.JUMP:
+	    return new JumpOp(info);
+	}
+
+	return new InterpretedOp(info);
+    }
+
+    /**
+     * One instruction of a translated block. Running an operation has exactly
+     * the effect of fetching, decoding, executing and writing back the
+     * instruction in the interpreter, apart from the fetch translation, which
+     * the block engine does once per block.
+     */
+    private abstract class BlockOp {
+	abstract void run(Instruction inst) throws MipsException;
+    }
+
+    /** An instruction with no specialized operation. */
+    private class InterpretedOp extends BlockOp {
+	InterpretedOp(DecodedInstruction info) {
+	    this.info = info;
+	}
+
+	void run(Instruction inst) throws MipsException {
+	    inst.run(info);
+	}
+
+	private final DecodedInstruction info;
+    }
+
+    /** An ALU instruction that cannot overflow. */
+    private class AluOp extends BlockOp {
+	AluOp(DecodedInstruction info) {
+	    operation = info.operation;
+	    flags = info.flags;
+	    rs = info.rs;
+	    rt = info.rt;
+	    sh = info.sh;
+	    imm = info.imm;
+	    dstReg = info.dstReg;
+	}
+
+	void run(Instruction inst) {
+	    long src1, src2, dst;
+
+	    if (Lib.test(Mips.SRC1SH, flags))
+		src1 = sh;
+	    else
+		src1 = registers[rs];
+
+	    if (Lib.test(Mips.SRC2IMM, flags))
+		src2 = imm;
+	    else
+		src2 = registers[rt];
+
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    switch (operation) {
+	    case Mips.ADD:
+		dst = src1 + src2;
+		break;
+	    case Mips.SUB:
+		dst = src1 - src2;
+		break;
+	    case Mips.SLL:
+		dst = src2 << (src1&0x1F);
+		break;
+	    case Mips.SRA:
+		dst = src2 >> (src1&0x1F);
+		break;
+	    case Mips.SRL:
+		dst = src2 >>> (src1&0x1F);
+		break;
+	    case Mips.SLT:
+		dst = (src1<src2) ? 1 : 0;
+		break;
+	    case Mips.AND:
+		dst = src1 & src2;
+		break;
+	    case Mips.OR:
+		dst = src1 | src2;
+		break;
+	    case Mips.NOR:
+		dst = ~(src1 | src2);
+		break;
+	    case Mips.XOR:
+		dst = src1 ^ src2;
+		break;
+	    default:	// LUI
+		dst = imm << 16;
+		break;
+	    }
+
+	    finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = (int) dst;
+
+	    advancePC();
+	}
+
+	private final int operation, flags, rs, rt, sh, imm, dstReg;
+    }
+
+    /** A load of a byte, halfword or word. */
+    private class LoadOp extends BlockOp {
+	LoadOp(DecodedInstruction info) {
+	    rs = info.rs;
+	    imm = info.imm;
+	    size = info.size;
+	    dstReg = info.dstReg;
+	    signed = !Lib.test(Mips.UNSIGNED, info.flags);
+	}
+
+	void run(Instruction inst) throws MipsException {
+	    int value = readMem(registers[rs] + imm, size);
+
+	    if (signed)
+		value = Lib.extend(value, 0, size*8);
+
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	    advancePC();
+	}
+
+	private final int rs, imm, size, dstReg;
+	private final boolean signed;
+    }
+
+    /** A store of a byte, halfword or word. */
+    private class StoreOp extends BlockOp {
+	StoreOp(DecodedInstruction info) {
+	    rs = info.rs;
+	    rt = info.rt;
+	    imm = info.imm;
+	    size = info.size;
+	}
+
+	void run(Instruction inst) throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+
+	    finishLoad();
+	    advancePC();
+	}
+
+	private final int rs, rt, imm, size;
+    }
+
+    /** A conditional branch that does not link. */
+    private class BranchOp extends BlockOp {
+	BranchOp(DecodedInstruction info) {
+	    operation = info.operation;
+	    rs = info.rs;
+	    rt = info.rt;
+	    branchOffset = info.branchOffset;
+	}
+
+	void run(Instruction inst) {
+	    int src1 = registers[rs];
+	    int src2 = registers[rt];
+	    boolean branch;
+
+	    switch (operation) {
+	    case Mips.BEQ:
+		branch = (src1 == src2);
+		break;
+	    case Mips.BNE:
+		branch = (src1 != src2);
+		break;
+	    case Mips.BGEZ:
+		branch = (src1 >= 0);
+		break;		
+	    case Mips.BGTZ:
+		branch = (src1 > 0);
+		break;		
+	    case Mips.BLEZ:
+		branch = (src1 <= 0);
+		break;		
+	    default:	// BLTZ
+		branch = (src1 < 0);
+		break;
+	    }
+
+	    finishLoad();
+
+	    int nextPC = registers[regNextPC];
+	    if (branch)
+		advancePC(nextPC + branchOffset);
+	    else
+		advancePC(nextPC + 4);
+	}
+
+	private final int operation, rs, rt, branchOffset;
+    }
+
+    /** <tt>j</tt>, <tt>jal</tt>, <tt>jr</tt> or <tt>jalr</tt>. */
+    private class JumpOp extends BlockOp {
+	JumpOp(DecodedInstruction info) {
+	    format = info.format;
+	    rs = info.rs;
+	    target = info.target;
+	    link = Lib.test(Mips.LINK, info.flags);
+	    dstReg = info.dstReg;
+	}
+
+	void run(Instruction inst) {
+	    int nextPC = registers[regNextPC];
+	    int jtarget;
+
+	    if (format == Mips.RFMT)
+		jtarget = registers[rs];
+	    else
+		jtarget = (nextPC&0xF0000000) | (target<<2);
+
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC + 4;
+
+	    advancePC(jtarget);
+	}
+
+	private final int format, rs, target, dstReg;
+	private final boolean link;
+    }
+
+    /**
+     * The part of decoding an instruction word that does not depend on the
+     * register file. Computed once per word and kept in the predecode cache.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // the branch offset uses the sign-extended immediate
+	    int signedImm = Lib.extend(value, 0, 16);
+	    branchOffset = signedImm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
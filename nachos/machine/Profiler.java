@@ -0,0 +1,402 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * An instruction-level profiler for user programs. When
+ * <tt>Processor.profile</tt> is set, the processor reports every instruction
+ * it issues and every exception it raises, and the profiler counts
+ * instructions, memory operations and exceptions at each PC. It also counts
+ * straight-line runs of instructions: a run starts whenever an instruction
+ * does not follow the previous one in memory, and is counted against the PC
+ * at which it started.
+ *
+ * <p>
+ * Counts are kept by virtual address, so if several programs run, their
+ * counts are merged. Addresses are attributed to the COFF section and, if the
+ * executable has a symbol table, the procedure that contains them, using the
+ * most recently loaded program that has a section at that address. Symbol
+ * tables are read from the test directory when the report is printed, so
+ * that reading them takes no simulated time.
+ *
+ * <p>
+ * The report is printed by <tt>Machine.halt()</tt>. The number of lines in
+ * each table is set by <tt>Processor.profileLength</tt>.
+ */
+public final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory executables are loaded from.
+     */
+    public Profiler(Privilege privilege, File directory) {
+	this.privilege = privilege;
+	this.directory = directory;
+	
+	reportLength = Config.getInteger("Processor.profileLength", 20);
+    }
+
+    /**
+     * Count an instruction about to execute.
+     *
+     * @param	pc		the address of the instruction.
+     * @param	memoryOp	<tt>true</tt> if the instruction is a load or
+     *				store.
+     */
+    void instruction(int pc, boolean memoryOp) {
+	long[] counts = counts(pc);
+	int i = index(pc);
+
+	counts[i+instructions]++;
+	if (memoryOp)
+	    counts[i+memoryOps]++;
+
+	if (pc != nextPC) {
+	    counts[i+runs]++;
+	    runCounts = counts;
+	    runIndex = i;
+	}
+	runCounts[runIndex+runInstructions]++;
+
+	nextPC = pc+4;
+    }
+
+    /**
+     * Count an exception raised by the instruction at the specified address.
+     *
+     * @param	pc	the address of the instruction.
+     */
+    void exception(int pc) {
+	counts(pc)[index(pc)+exceptions]++;
+
+	// whatever runs next starts a new run
+	nextPC = -1;
+    }
+
+    /**
+     * Note that an executable has been loaded, so that addresses can be
+     * attributed to its sections and procedures.
+     *
+     * @param	file	the executable file.
+     * @param	coff	the loader for the file.
+     */
+    void addProgram(OpenFile file, Coff coff) {
+	Lib.assertTrue(file != null);
+
+	Program program = new Program();
+	program.name = file.getName();
+	program.sections = new CoffSection[coff.getNumSections()];
+	for (int s=0; s<program.sections.length; s++)
+	    program.sections[s] = coff.getSection(s);
+
+	programs.add(program);
+    }
+
+    /**
+     * Print the hot-spot report.
+     */
+    public void print() {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    for (Program program : programs)
+			readSymbols(program);
+		}
+	    });
+
+	ArrayList<Integer> pcs = new ArrayList<Integer>();
+	long totalInstructions = 0, totalMemoryOps = 0, totalExceptions = 0;
+
+	for (Integer vpn : pages.keySet()) {
+	    long[] counts = pages.get(vpn);
+	    for (int i=0; i<counts.length; i+=fields) {
+		if (counts[i+instructions] == 0 && counts[i+exceptions] == 0)
+		    continue;
+
+		pcs.add(vpn*Processor.pageSize + i/fields*4);
+		totalInstructions += counts[i+instructions];
+		totalMemoryOps += counts[i+memoryOps];
+		totalExceptions += counts[i+exceptions];
+	    }
+	}
+
+	System.out.println("Profile: " + totalInstructions + " instructions, "
+			   + totalMemoryOps + " memory operations, "
+			   + totalExceptions + " exceptions");
+
+	System.out.println("Hot PCs:");
+	System.out.println("  instructions      %   memory  exceptions  pc");
+	for (int pc : top(pcs, instructions)) {
+	    long[] counts = counts(pc);
+	    int i = index(pc);
+	    System.out.println(pad(counts[i+instructions], 14)
+			       + pad(percent(counts[i+instructions],
+					     totalInstructions), 7)
+			       + pad(counts[i+memoryOps], 9)
+			       + pad(counts[i+exceptions], 12)
+			       + "  0x" + Lib.toHexString(pc) + " "
+			       + locate(pc));
+	}
+
+	System.out.println("Hot runs:");
+	System.out.println("  instructions      %  entries  pc");
+	for (int pc : top(pcs, runInstructions)) {
+	    long[] counts = counts(pc);
+	    int i = index(pc);
+	    System.out.println(pad(counts[i+runInstructions], 14)
+			       + pad(percent(counts[i+runInstructions],
+					     totalInstructions), 7)
+			       + pad(counts[i+runs], 9)
+			       + "  0x" + Lib.toHexString(pc) + " "
+			       + locate(pc));
+	}
+    }
+
+    /**
+     * Return the <tt>reportLength</tt> PCs with the highest count in the
+     * specified field, highest first, leaving out PCs with no count.
+     */
+    private Integer[] top(ArrayList<Integer> pcs, final int field) {
+	Integer[] sorted = pcs.toArray(new Integer[pcs.size()]);
+
+	Arrays.sort(sorted, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    long countA = counts(a)[index(a)+field];
+		    long countB = counts(b)[index(b)+field];
+		    return (countA < countB) ? 1 : (countA > countB) ? -1 : 0;
+		}
+	    });
+
+	int length = 0;
+	while (length < sorted.length && length < reportLength &&
+	       counts(sorted[length])[index(sorted[length])+field] > 0)
+	    length++;
+
+	return Arrays.copyOf(sorted, length);
+    }
+
+    /**
+     * Describe where an address lies, as the program, the section and the
+     * procedure plus an offset.
+     */
+    private String locate(int pc) {
+	int vpn = pc / Processor.pageSize;
+
+	for (int p=programs.size()-1; p>=0; p--) {
+	    Program program = programs.get(p);
+
+	    for (CoffSection section : program.sections) {
+		if (vpn < section.getFirstVPN() ||
+		    vpn >= section.getFirstVPN() + section.getLength())
+		    continue;
+
+		String location = program.name + " " + section.getName();
+
+		// the procedure with the highest address not above pc
+		int s = Arrays.binarySearch(program.symbolAddresses, pc);
+		if (s < 0)
+		    s = -s - 2;
+		if (s >= 0) {
+		    location += " " + program.symbolNames[s];
+		    if (pc != program.symbolAddresses[s])
+			location += "+0x" +
+			    Integer.toHexString(pc -
+						program.symbolAddresses[s]);
+		}
+
+		return location;
+	    }
+	}
+
+	return "?";
+    }
+
+    /**
+     * Read the procedure symbols from the MIPS ECOFF symbol table of an
+     * executable, if it has one. Only local symbols are read, since the test
+     * programs are linked with their external symbols stripped. A malformed
+     * symbol table is ignored.
+     */
+    private void readSymbols(Program program) {
+	RandomAccessFile file;
+	try {
+	    file = new RandomAccessFile(new File(directory, program.name), "r");
+	}
+	catch (IOException e) {
+	    return;
+	}
+
+	try {
+	    readSymbols(file, program);
+	}
+	finally {
+	    try {
+		file.close();
+	    }
+	    catch (IOException e) {
+	    }
+	}
+    }
+
+    private void readSymbols(RandomAccessFile file, Program program) {
+	byte[] header = read(file, 0, 20);
+	if (header == null)
+	    return;
+
+	int symbolicHeaderOffset = Lib.bytesToInt(header, 8);
+	int symbolicHeaderLength = Lib.bytesToInt(header, 12);
+	if (symbolicHeaderOffset <= 0 || symbolicHeaderLength != 96)
+	    return;
+
+	byte[] hdr = read(file, symbolicHeaderOffset, symbolicHeaderLength);
+	if (hdr == null || Lib.bytesToUnsignedShort(hdr, 0) != 0x7009)
+	    return;
+
+	int numSymbols = Lib.bytesToInt(hdr, 32);
+	int symbolOffset = Lib.bytesToInt(hdr, 36);
+	int stringsLength = Lib.bytesToInt(hdr, 56);
+	int stringsOffset = Lib.bytesToInt(hdr, 60);
+	int numFiles = Lib.bytesToInt(hdr, 72);
+	int fileOffset = Lib.bytesToInt(hdr, 76);
+
+	byte[] symbols = read(file, symbolOffset, numSymbols*12);
+	byte[] strings = read(file, stringsOffset, stringsLength);
+	byte[] files = read(file, fileOffset, numFiles*72);
+	if (symbols == null || strings == null || files == null)
+	    return;
+
+	ArrayList<Integer> addresses = new ArrayList<Integer>();
+	HashMap<Integer,String> names = new HashMap<Integer,String>();
+
+	for (int f=0; f<numFiles; f++) {
+	    int stringsBase = Lib.bytesToInt(files, f*72 + 8);
+	    int firstSymbol = Lib.bytesToInt(files, f*72 + 16);
+	    int count = Lib.bytesToInt(files, f*72 + 20);
+
+	    for (int i=firstSymbol; i<firstSymbol+count; i++) {
+		if (i < 0 || i >= numSymbols)
+		    return;
+
+		int name = stringsBase + Lib.bytesToInt(symbols, i*12);
+		int address = Lib.bytesToInt(symbols, i*12 + 4);
+		int type = Lib.bytesToInt(symbols, i*12 + 8) & 0x3F;
+
+		if (type != stProc && type != stStaticProc)
+		    continue;
+		if (name < 0 || name >= stringsLength)
+		    return;
+
+		if (!names.containsKey(address))
+		    addresses.add(address);
+		names.put(address,
+			  Lib.bytesToString(strings, name,
+					    stringsLength - name));
+	    }
+	}
+
+	program.symbolAddresses = new int[addresses.size()];
+	for (int i=0; i<addresses.size(); i++)
+	    program.symbolAddresses[i] = addresses.get(i);
+	Arrays.sort(program.symbolAddresses);
+
+	program.symbolNames = new String[addresses.size()];
+	for (int i=0; i<addresses.size(); i++)
+	    program.symbolNames[i] = names.get(program.symbolAddresses[i]);
+    }
+
+    private static byte[] read(RandomAccessFile file, int position,
+			       int length) {
+	try {
+	    if (position < 0 || length < 0 ||
+		position+length > file.length())
+		return null;
+
+	    byte[] buf = new byte[length];
+	    file.seek(position);
+	    file.readFully(buf);
+	    return buf;
+	}
+	catch (IOException e) {
+	    return null;
+	}
+    }
+
+    private long[] counts(int pc) {
+	int vpn = pc >>> pageShift;
+
+	if (vpn != lastVPN || lastCounts == null) {
+	    lastCounts = pages.get(vpn);
+	    if (lastCounts == null) {
+		lastCounts = new long[Processor.pageSize/4*fields];
+		pages.put(vpn, lastCounts);
+	    }
+	    lastVPN = vpn;
+	}
+
+	return lastCounts;
+    }
+
+    private static int index(int pc) {
+	return (pc & (Processor.pageSize-1)) / 4 * fields;
+    }
+
+    private static String percent(long count, long total) {
+	long tenths = (total == 0) ? 0 : count * 1000 / total;
+	return (tenths / 10) + "." + (tenths % 10);
+    }
+
+    private static String pad(Object value, int width) {
+	String s = value.toString();
+	while (s.length() < width)
+	    s = " " + s;
+	return s;
+    }
+
+    private static class Program {
+	String name;
+	CoffSection[] sections;
+	int[] symbolAddresses = new int[0];
+	String[] symbolNames = new String[0];
+    }
+
+    private Privilege privilege;
+    private File directory;
+    private int reportLength;
+
+    /** Counters for each virtual page, <tt>fields</tt> per word. */
+    private HashMap<Integer,long[]> pages = new HashMap<Integer,long[]>();
+    private int lastVPN;
+    private long[] lastCounts = null;
+
+    /** The address that would continue the current run. */
+    private int nextPC = -1;
+    /** Where the current run's instructions are counted. */
+    private long[] runCounts;
+    private int runIndex;
+
+    private ArrayList<Program> programs = new ArrayList<Program>();
+
+    private static final int
+	instructions = 0,
+	memoryOps = 1,
+	exceptions = 2,
+	runs = 3,
+	runInstructions = 4,
+	fields = 5;
+
+    private static final int pageShift =
+	Integer.numberOfTrailingZeros(Processor.pageSize);
+
+    private static final int stProc = 6, stStaticProc = 14;
+}
@@ -0,0 +1,162 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves and restores pre-trap user snapshots: snapshots of a user program
+ * taken before it first traps into the kernel. This is not a checkpoint of
+ * the whole machine. A snapshot holds the statistics (and so the simulated
+ * time), the processor registers, the pending delayed load, the address
+ * translations, all of physical memory and the type and due time of each
+ * pending interrupt, compressed.
+ *
+ * <p>
+ * Kernel data structures live on the stacks and heaps of Java threads, which
+ * cannot be saved. Instead, a restored run boots the kernel and loads the
+ * same program as usual, and the snapshot is applied when that program
+ * first starts executing, overwriting memory, registers and time. This
+ * requires a run with a single user program whose page table is fixed when
+ * it is loaded, and a kernel that allocates physical pages the same way on
+ * every run; the translations in the snapshot are checked against the ones
+ * the kernel set up.
+ *
+ * <p>
+ * So the snapshot is limited to what the kernel sets up before the program
+ * starts. Once the program traps into the kernel, with a system call or any
+ * other exception, the kernel holds state for it that a restored run would
+ * not have, and no snapshot is written from then on. Likewise, interrupt
+ * handlers belong to the devices and cannot be saved: the devices of the
+ * restored run must have scheduled interrupts of the same types as were
+ * pending, and each is moved to the time the saved one was due. A
+ * snapshot with any other pending interrupts is rejected.
+ */
+public final class Snapshot {
+    private Snapshot() {
+    }
+
+    /**
+     * Write a snapshot of the specified processor to a file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to write.
+     * @param	processor	the processor running the user program.
+     */
+    static void save(Privilege privilege, final String fileName,
+		     final Processor processor) {
+	final Stats stats = privilege.stats;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			DataOutputStream out = new DataOutputStream(
+			    new GZIPOutputStream(
+				new FileOutputStream(fileName)));
+
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeUTF(Machine.getShellProgramName());
+			writeStats(out, stats);
+			processor.writeSnapshot(out);
+			Machine.interrupt().writeSnapshot(out);
+			out.close();
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("could not write snapshot " +
+					     fileName + ": " + e);
+		    }
+		}
+	    });
+
+	System.out.println("snapshot written to " + fileName + " at tick "
+			   + stats.totalTicks);
+    }
+
+    /**
+     * Restore a snapshot from a file into the specified processor.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to read.
+     * @param	processor	the processor about to run the user program.
+     */
+    static void restore(Privilege privilege, final String fileName,
+			final Processor processor) {
+	final Stats stats = privilege.stats;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			DataInputStream in = new DataInputStream(
+			    new GZIPInputStream(
+				new FileInputStream(fileName)));
+
+			Lib.assertTrue(in.readInt() == magic &&
+				       in.readInt() == version,
+				       fileName + " is not a snapshot");
+			Lib.assertTrue(in.readUTF().equals(
+					   Machine.getShellProgramName()),
+				       "snapshot is of a different program");
+			readStats(in, stats);
+			processor.readSnapshot(in);
+			Machine.interrupt().readSnapshot(in);
+			in.close();
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("could not read snapshot " +
+					     fileName + ": " + e);
+		    }
+		}
+	    });
+
+	System.out.println("snapshot restored from " + fileName
+			   + " at tick " + stats.totalTicks);
+    }
+
+    private static void writeStats(DataOutputStream out, Stats stats)
+	throws IOException {
+	out.writeLong(stats.totalTicks);
+	out.writeLong(stats.kernelTicks);
+	out.writeLong(stats.userTicks);
+	out.writeInt(stats.numDiskReads);
+	out.writeInt(stats.numDiskWrites);
+	out.writeInt(stats.numConsoleReads);
+	out.writeInt(stats.numConsoleWrites);
+	out.writeInt(stats.numPageFaults);
+	out.writeInt(stats.numTLBMisses);
+	out.writeInt(stats.numPacketsSent);
+	out.writeInt(stats.numPacketsReceived);
+    }
+
+    private static void readStats(DataInputStream in, Stats stats)
+	throws IOException {
+	long totalTicks = in.readLong();
+	Lib.assertTrue(totalTicks >= stats.totalTicks,
+		       "snapshot is earlier than the restored program");
+
+	stats.totalTicks = totalTicks;
+	stats.kernelTicks = in.readLong();
+	stats.userTicks = in.readLong();
+	stats.numDiskReads = in.readInt();
+	stats.numDiskWrites = in.readInt();
+	stats.numConsoleReads = in.readInt();
+	stats.numConsoleWrites = in.readInt();
+	stats.numPageFaults = in.readInt();
+	stats.numTLBMisses = in.readInt();
+	stats.numPacketsSent = in.readInt();
+	stats.numPacketsReceived = in.readInt();
+    }
+
+    private static final int magic = 0x4E414348;
+    private static final int version = 1;
+}
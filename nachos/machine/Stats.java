@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -27,10 +29,44 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (tlbHits != null) {
+	    for (int i=0; i<tlbHits.length; i++)
+		System.out.println("TLB set " + i + ": hits " + tlbHits[i]
+				   + ", misses " + tlbMisses[i]
+				   + ", evictions " + tlbEvictions[i]);
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	// the first TCB runs on the main thread, so it is not counted here
+	int reused = Math.max(0, numThreadsStarted - 1 - numHostThreadsCreated);
+	System.out.println("Threads: started " + numThreadsStarted
+			   + ", host threads created " + numHostThreadsCreated
+			   + ", reused " + reused);
+
+	long instructions = userTicks / UserTick;
+	long elapsed = System.currentTimeMillis() - startTime;
+	System.out.println("Throughput: " + instructions
+			   + " user instructions in " + elapsed + " ms ("
+			   + (instructions * 1000 / Math.max(elapsed, 1))
+			   + " instructions/second)");
+
+	for (int i=0; i<reports.size(); i++)
+	    reports.get(i).run();
+    }
+
+    /**
+     * Add a report of statistics kept by the kernel, which <tt>print()</tt>
+     * prints after the machine's own statistics.
+     *
+     * @param	report	prints the statistics.
+     */
+    void addReport(Runnable report) {
+	reports.add(report);
     }
 
+    /** The wall-clock time, in milliseconds, when Nachos started. */
+    public final long startTime = System.currentTimeMillis();
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -57,11 +93,32 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The number of TLB hits in each TLB set, or <tt>null</tt> if the
+     * processor has no TLB.
+     */
+    public long[] tlbHits = null;
+    /**
+     * The number of TLB misses in each TLB set, or <tt>null</tt> if the
+     * processor has no TLB.
+     */
+    public long[] tlbMisses = null;
+    /**
+     * The number of valid TLB entries replaced or invalidated in each TLB
+     * set, or <tt>null</tt> if the processor has no TLB.
+     */
+    public long[] tlbEvictions = null;
+    /** The number of TCBs that have been started. */
+    public int numThreadsStarted = 0;
+    /** The number of JVM threads created to run TCBs. */
+    public int numHostThreadsCreated = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
 
+    private ArrayList<Runnable> reports = new ArrayList<Runnable>();
+
     /**
      * The amount to advance simulated time after each user instructions is
      * executed.
@@ -5,7 +5,12 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +19,25 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Only one TCB runs at a time. A context switch hands off directly from one
+ * JVM thread to the next: the current thread unparks the next one and parks
+ * itself. The number of TCBs that may exist at once is set by
+ * <tt>TCB.maxThreads</tt>, and the stack size of their JVM threads by
+ * <tt>TCB.stackSize</tt> (in bytes, 0 for the JVM's default). If
+ * <tt>TCB.virtualThreads</tt> is set, TCBs run on virtual threads, which
+ * allow far more threads. They need a JVM that provides them (Java 21 or
+ * later), and such a JVM only lets Nachos install its security manager when
+ * run with <tt>-Djava.security.manager=allow</tt>.
+ *
+ * <p>
+ * When a TCB is destroyed, its JVM thread does not exit, but parks in a pool
+ * of idle threads, and the next TCB to start runs on it. This saves creating
+ * and tearing down a JVM thread for every Nachos thread. The pool holds at
+ * most <tt>TCB.poolSize</tt> threads; the others exit as before. The
+ * statistics report how many TCBs were started and how many JVM threads had
+ * to be created for them.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +64,27 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	maxThreads = Config.getInteger("TCB.maxThreads", 250);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	int poolSize = Config.getInteger("TCB.poolSize", 64);
+	Lib.assertTrue(maxThreads > 0 && stackSize >= 0 && poolSize >= 0);
+
+	if (poolSize > 0)
+	    idleCarriers = new ArrayBlockingQueue<Carrier>(poolSize);
+
+	if (Config.getBoolean("TCB.virtualThreads", false)) {
+	    try {
+		virtualThreadBuilder =
+		    Thread.class.getMethod("ofVirtual").invoke(null);
+		startVirtualThread =
+		    Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", Runnable.class);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("this JVM has no virtual threads");
+	    }
+	}
     }
     
     /**
@@ -85,27 +130,41 @@ public final class TCB {
 
 	this.target = target;
 
+	privilege.stats.numThreadsStarted++;
+
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * If there is an idle one in the pool, we use it; otherwise we
+	     * have to make a new one. Creating Java threads is a privileged
+	     * operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    Carrier carrier = null;
+	    if (idleCarriers != null)
+		carrier = idleCarriers.poll();
+
+	    if (carrier == null) {
+		final Carrier newCarrier = new Carrier();
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    newCarrier.thread = newThread(newCarrier);
+			}
+		    });
+		privilege.stats.numHostThreadsCreated++;
+		carrier = newCarrier;
+	    }
+
+	    javaThread = carrier.thread;
+
+	    /* The Java thread isn't running this TCB yet, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off
+	     * the current TCB, handing this TCB to the Java thread (starting
+	     * it if it is new), and waiting for it to wake us up from
+	     * threadroot(). Once the new TCB wakes us up, it's safe to context
+	     * switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    carrier.run(this);
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -119,6 +178,27 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Create a JVM thread to run a TCB, of the kind the configuration asks
+     * for. Creating Java threads is a privileged operation.
+     */
+    private static Thread newThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) startVirtualThread.invoke(virtualThreadBuilder,
+							  target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create a virtual thread: " + e);
+	    }
+	}
+
+	if (stackSize > 0)
+	    return new Thread(null, target, "TCB", stackSize);
+	else
+	    return new Thread(target);
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -244,15 +324,24 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads are daemon threads, so the JVM would exit once
+	     * the first TCB, which runs on the main Java thread, returned. It
+	     * waits instead, until the other TCBs exit Nachos.
+	     */
+	    if (isFirstTCB && virtualThreadBuilder != null) {
+		while (true)
+		    LockSupport.park(this);
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(1);
 	    else
@@ -260,6 +349,52 @@ public final class TCB {
 	}
     }
 
+    /**
+     * A Java thread that runs TCBs one after another. After the TCB it runs
+     * is destroyed, it returns to the pool of idle threads if there is room,
+     * and parks until it is handed another TCB.
+     */
+    private static class Carrier implements Runnable {
+	/**
+	 * Hand a TCB to this thread to run, starting the thread if it has not
+	 * run one before.
+	 */
+	void run(TCB tcb) {
+	    this.tcb = tcb;
+
+	    if (started) {
+		LockSupport.unpark(thread);
+	    }
+	    else {
+		started = true;
+		thread.start();
+	    }
+	}
+
+	public void run() {
+	    while (true) {
+		TCB tcb;
+		while ((tcb = this.tcb) == null)
+		    LockSupport.park(this);
+
+		tcb.threadroot();
+
+		/* threadroot() only returns once the TCB has been destroyed,
+		 * and the TCB that destroyed it is already running, so the
+		 * pool must be safe to use from several Java threads.
+		 */
+		this.tcb = null;
+		if (idleCarriers == null || !idleCarriers.offer(this))
+		    return;
+	    }
+	}
+
+	Thread thread;
+	private boolean started = false;
+	/** The TCB to run next, or <tt>null</tt> while waiting for one. */
+	private volatile TCB tcb = null;
+    }
+
     /**
      * Invoked by threadroot() and by contextSwitch() when it is necessary to
      * wait for another TCB to context switch to this TCB. Since this TCB
@@ -280,29 +415,33 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * If the thread is unparked before it parks, <tt>park()</tt> returns at
+     * once, and spurious returns are caught by checking <tt>running</tt>
+     * again, so no wakeup is lost.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
+     * TCB. Since <tt>running</tt> is volatile, everything the current thread
+     * did before is visible to this TCB's thread once it sees the flag.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -328,9 +467,26 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, set by <tt>TCB.maxThreads</tt>.
+     */
+    private static int maxThreads;
+
+    /** The stack size of the Java threads created for TCBs, or 0. */
+    private static int stackSize;
+
+    /**
+     * A <tt>Thread.Builder</tt> for virtual threads, and its
+     * <tt>unstarted()</tt> method, if TCBs run on virtual threads. They are
+     * found by reflection, so that Nachos still builds for older JVMs.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method startVirtualThread;
+
+    /**
+     * The Java threads waiting to run a new TCB, or <tt>null</tt> if
+     * <tt>TCB.poolSize</tt> is 0.
      */
-    public static final int maxThreads = 250;
+    private static ArrayBlockingQueue<Carrier> idleCarriers = null;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -348,8 +504,8 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * A set containing all <i>running</i> TCB objects. It is initialized to
+     * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
@@ -357,9 +513,12 @@ public final class TCB {
      * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this set is basically never empty. It is
+     * synchronized, since a destroyed TCB removes itself after the next TCB
+     * has started running.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static Set<TCB> runningThreads =
+	Collections.synchronizedSet(new HashSet<TCB>());
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -388,7 +547,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +559,6 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
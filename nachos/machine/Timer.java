@@ -13,6 +13,13 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is set, the timer does not interrupt
+ * periodically. Instead, the kernel programs it with
+ * <tt>setNextInterrupt()</tt> to interrupt once, at the next time the kernel
+ * has something to do, such as waking a sleeping thread. This saves the
+ * interrupts a periodic timer would cause while nothing is due.
  */
 public final class Timer {
     /**
@@ -25,6 +32,8 @@ public final class Timer {
 	System.out.print(" timer");
 	
 	this.privilege = privilege;
+
+	tickless = Config.getBoolean("Timer.tickless", false);
 	
 	timerInterrupt = new Runnable() {
 		public void run() { timerInterrupt(); }
@@ -37,7 +46,8 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	if (!tickless)
+	    scheduleInterrupt();
     }
 
     /**
@@ -50,6 +60,36 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Tests whether the timer is in tickless mode, so that it only interrupts
+     * when programmed to with <tt>setNextInterrupt()</tt>.
+     *
+     * @return	<tt>true</tt> if the timer is in tickless mode.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Program the timer to interrupt once, at the specified time, or as soon
+     * as possible if that time has passed. This replaces any time the timer
+     * was programmed with before. The timer must be in tickless mode.
+     *
+     * @param	time	the time at which to call the timer interrupt
+     *			handler.
+     */
+    public void setNextInterrupt(long time) {
+	Lib.assertTrue(tickless);
+
+	time = Math.max(time, getTime()+1);
+	if (time == nextInterrupt)
+	    return;
+
+	// an interrupt scheduled for an earlier time is ignored when it occurs
+	nextInterrupt = time;
+	privilege.interrupt.schedule(time - getTime(), "timer", timerInterrupt);
+    }
+
     /**
      * Get the current time.
      *
@@ -60,7 +100,15 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (tickless) {
+	    if (nextInterrupt < 0 || getTime() < nextInterrupt)
+		return;
+
+	    nextInterrupt = -1;
+	}
+	else {
+	    scheduleInterrupt();
+	}
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -80,6 +128,10 @@ public final class Timer {
 	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
 
+    private boolean tickless;
+    /** The time the timer is programmed for in tickless mode, or -1. */
+    private long nextInterrupt = -1;
+
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
@@ -13,6 +13,9 @@ import java.awt.AWTPermission;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
 import java.security.PrivilegedActionException;
+import java.lang.reflect.ReflectPermission;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Protects the environment from malicious Nachos code.
@@ -59,7 +62,7 @@ public class NachosSecurityManager extends SecurityManager {
 	    NachosSecurityManager.this.doPrivileged(action);
 	}
 
-	public Object doPrivileged(PrivilegedAction action) {
+	public <T> T doPrivileged(PrivilegedAction<T> action) {
 	    return NachosSecurityManager.this.doPrivileged(action);
 	}
 
@@ -122,14 +125,28 @@ public class NachosSecurityManager extends SecurityManager {
 	return (privileged == Thread.currentThread());
     }
 
+    /**
+     * Test if the JVM is creating a carrier thread for virtual threads. A TCB
+     * running on a virtual thread does this, without privilege, when it
+     * starts or wakes another, and Nachos code cannot create one itself.
+     */
+    private boolean startingCarrier() {
+	Class<?>[] classes = getClassContext();
+	for (int i=0; i<classes.length; i++) {
+	    if (classes[i].getName().equals(carrierThreadClass))
+		return true;
+	}
+	return false;
+    }
+
     private void doPrivileged(final Runnable action) {
-	doPrivileged(new PrivilegedAction() {
+	doPrivileged(new PrivilegedAction<Object>() {
 	    public Object run() { action.run(); return null; }
 	});
     }
 
-    private Object doPrivileged(PrivilegedAction action) {
-	Object result = null;
+    private <T> T doPrivileged(PrivilegedAction<T> action) {
+	T result = null;
 	enablePrivilege();
 	try {
 	    result = action.run();
@@ -272,6 +289,12 @@ public class NachosSecurityManager extends SecurityManager {
 	    }
 	}
 
+	// the JVM may add a carrier thread when a TCB starts a virtual thread
+	if ((perm instanceof RuntimePermission ||
+	     perm instanceof ReflectPermission) &&
+	    carrierPermissions.contains(name) && startingCarrier())
+	    return;
+
 	// default to requiring privilege
 	verifyPrivilege(perm);
     }
@@ -314,5 +337,17 @@ public class NachosSecurityManager extends SecurityManager {
     private Thread privileged = null;
     private int privilegeCount = 0;
     
+    /** The class of the JVM's carrier threads for virtual threads. */
+    private static final String carrierThreadClass =
+	"jdk.internal.misc.CarrierThread";
+    /**
+     * The permissions that constructing a carrier thread checks, for its
+     * thread group, its context class loader, and the reflection that the
+     * <tt>Thread</tt> constructor does on its class.
+     */
+    private static final List<String> carrierPermissions =
+	Arrays.asList("modifyThreadGroup", "enableContextClassLoaderOverride",
+		      "suppressAccessChecks");
+
     private static final char dbgSecurity = 'S';
 }
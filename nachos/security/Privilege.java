@@ -63,7 +63,7 @@ public abstract class Privilege {
      * @param	action	the action to perform.
      * @return	the return value of the action.
      */
-    public abstract Object doPrivileged(PrivilegedAction action);
+    public abstract <T> T doPrivileged(PrivilegedAction<T> action);
 
     /**
      * Perform the specified <tt>PrivilegedExceptionAction</tt> with privilege.
@@ -158,6 +158,26 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user instructions that can execute before the
+	 * earliest pending interrupt could come due. That many instructions
+	 * can run without calling <tt>tick(false)</tt> after each one, as long
+	 * as they are then accounted for with <tt>settleTicks()</tt>.
+	 *
+	 * @return	the number of user ticks that can pass without invoking
+	 *		an interrupt handler.
+	 */
+	public long tickBudget();
+
+	/**
+	 * Advance the simulated time by the specified number of user
+	 * instructions in one step. The count must not exceed the last value
+	 * returned by <tt>tickBudget()</tt>.
+	 *
+	 * @param	count	the number of user instructions executed.
+	 */
+	public void settleTicks(long count);
     }
 
     /**
@@ -1,11 +1,15 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
- * until a certain time.
+ * until a certain time. A thread is preempted at the end of a timer interrupt
+ * when the scheduler says its time slice is used up.
+ *
+ * <p>
+ * Sleeping threads and other timeouts are kept in a <tt>TimingWheel</tt>,
+ * which the timer interrupt handler advances to the current time.
  */
 public class Alarm {
     /**
@@ -16,6 +20,8 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+	wheel = new TimingWheel(Machine.timer().getTime());
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -23,18 +29,21 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks), or in tickless mode
+     * only when it is programmed to. Wakes the threads whose wake time has
+     * come, expires the timeouts that are due, and preempts the current
+     * thread if the scheduler asks.
      */
     public void timerInterrupt() {
-
 	boolean status = Machine.interrupt().disable(); //making operation atomic "unsplittable"
-   	while(!waitQueue.isEmpty() && waitQueue.peek().finish < Machine.timer().getTime()) //waking all ready threads
-            waitQueue.poll().getThread().ready(); 
 
-    	Machine.interrupt().restore(status);//restore status
+	wheel.advance(Machine.timer().getTime()); //waking all ready threads
+	programTimer(); //in tickless mode, interrupt again at the next wake time
 
+	if (ThreadedKernel.scheduler.shouldPreempt())
+	    KThread.preempt(); //time slice used up
+
+	Machine.interrupt().restore(status); //restore status
     }
 
     /**
@@ -52,49 +61,106 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	long finish = Machine.timer().getTime() + x; //set time to wake 
-	KThread temp = KThread.currentThread();
 	boolean status = Machine.interrupt().disable(); //making operation atomic "unsplittable"
-	WaitList wait = new WaitList(temp,finish); //create object to store thread to wait and wake time
-	waitQueue.add(wait); //add thread to wait to waitQueue
+
+	Sleeper sleeper = freeSleepers; //reuse a sleeper if there is one
+	if (sleeper != null)
+	    freeSleepers = sleeper.nextFree;
+	else
+	    sleeper = new Sleeper();
+
+	sleeper.thread = KThread.currentThread();
+	setTimeout(sleeper, x);
 	KThread.sleep(); //sleep thread
+
 	Machine.interrupt().restore(status); //restore status
+    }
 
-   }
-    private class WaitList implements Comparable<WaitList>{ //helper object containing wake times and threads.
-    	KThread thread;
-    	long finish;
+    /**
+     * Schedule a timeout to expire in at least <i>x</i> ticks, in the first
+     * timer interrupt where the time has come, as for <tt>waitUntil()</tt>.
+     * The timeout's <tt>expire()</tt> method is called from the timer
+     * interrupt handler, with interrupts disabled, so it must not block. The
+     * timeout must not already be pending.
+     *
+     * @param	timeout	the timeout to schedule.
+     * @param	x	the minimum number of clock ticks until it expires.
+     */
+    public void setTimeout(TimingWheel.Timeout timeout, long x) {
+	boolean status = Machine.interrupt().disable();
 
-	public WaitList(KThread t, long f){thread = t; finish = f;}
+	wheel.add(timeout, Machine.timer().getTime() + x);
+	programTimer(); //in case this timeout is the first to expire
 
-    	public int compareTo(WaitList temp){ //implementing comparator, prioritize members with a smaller wake time
-        	if(finish < temp.finish) 
-            		return -1;
-        	else if (finish > temp.finish)
-            		return 1;
-        	else 
-            		return 0;
+	Machine.interrupt().restore(status);
+    }
 
-    	}public long finishTime(){return finish;} //functions to access member variables
-    	public KThread getThread(){return thread;}
+    /**
+     * Cancel a timeout scheduled with <tt>setTimeout()</tt>, so that it does
+     * not expire.
+     *
+     * @param	timeout	the timeout to cancel.
+     * @return	<tt>true</tt> if the timeout was still pending.
+     */
+    public boolean cancelTimeout(TimingWheel.Timeout timeout) {
+	boolean status = Machine.interrupt().disable();
 
+	// in tickless mode, an interrupt programmed for it does no harm
+	boolean pending = wheel.cancel(timeout);
+
+	Machine.interrupt().restore(status);
+	return pending;
+    }
+
+    /**
+     * In tickless mode, program the timer to interrupt at the earliest
+     * deadline. With nothing pending, the timer is left alone and stops
+     * interrupting.
+     */
+    private void programTimer() {
+	if (Machine.timer().isTickless() && wheel.size() > 0)
+	    Machine.timer().setNextInterrupt(wheel.nextDeadline());
     }
 
-   public PriorityQueue<WaitList> waitQueue = new PriorityQueue<WaitList>();//Priority queue to store and sort threads
+    /** Wakes a thread sleeping in <tt>waitUntil()</tt>. */
+    private class Sleeper extends TimingWheel.Timeout {
+	public void expire() {
+	    thread.ready();
+
+	    thread = null;
+	    nextFree = freeSleepers;
+	    freeSleepers = this;
+	}
+
+	KThread thread;
+	Sleeper nextFree;
+    }
+
+    private TimingWheel wheel;
+    private Sleeper freeSleepers = null;
+
    private static boolean test = false;
    public static void selfTest(){
-	long start = Machine.timer().getTime();   	
-	new Alarm().waitUntil(1000);
+	long start = Machine.timer().getTime();
+	ThreadedKernel.alarm.waitUntil(1000);
 	long finish = Machine.timer().getTime();
 	Lib.assertTrue(finish - start >= 1000);//basic test to check that it waits
-	
-	KThread temp = new KThread(new Runnable(){public void run(){new Alarm().waitUntil(1000); test = false;}}).setName("Bool");
-	KThread temp1 = new KThread(new Runnable(){public void run(){new Alarm().waitUntil(10); test = true;}}).setName("Bool");//testing whether threads are prioritized by finish time
+
+	KThread temp = new KThread(new Runnable(){public void run(){ThreadedKernel.alarm.waitUntil(1000); test = false;}}).setName("Bool");
+	KThread temp1 = new KThread(new Runnable(){public void run(){ThreadedKernel.alarm.waitUntil(10); test = true;}}).setName("Bool");//testing whether threads are prioritized by finish time
 	temp.fork();
 	temp1.fork();
 	temp1.join();
 	Lib.assertTrue(test); //will only be true if temp1 finishes before temp, checks that priorityqueue sorts correctly
 	temp.join();
 
+	final int[] expired = new int[1]; //testing that a cancelled timeout never expires
+	TimingWheel.Timeout kept = new TimingWheel.Timeout(){public void expire(){expired[0]++;}};
+	TimingWheel.Timeout cancelled = new TimingWheel.Timeout(){public void expire(){expired[0] += 100;}};
+	ThreadedKernel.alarm.setTimeout(kept, 500);
+	ThreadedKernel.alarm.setTimeout(cancelled, 100);
+	Lib.assertTrue(ThreadedKernel.alarm.cancelTimeout(cancelled));
+	ThreadedKernel.alarm.waitUntil(1000);
+	Lib.assertTrue(expired[0] == 1 && !ThreadedKernel.alarm.cancelTimeout(kept));
    }
-}
\ No newline at end of file
+}
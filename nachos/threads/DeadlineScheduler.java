@@ -0,0 +1,478 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * A scheduler with an earliest-deadline-first real-time class layered over
+ * another scheduler, which schedules every other thread.
+ *
+ * <p>
+ * A thread joins the real-time class with <tt>setReservation()</tt>,
+ * declaring a period and a budget: it asks for up to <i>budget</i> ticks of
+ * CPU time in each <i>period</i> ticks. A reservation is only admitted if
+ * the total utilization, the sum of budget over period of all reservations,
+ * stays within <tt>DeadlineScheduler.maxUtilization</tt> (1 by default), so
+ * that every admitted thread can meet its deadlines.
+ *
+ * <p>
+ * Each period of a real-time thread is a job, which is done when the thread
+ * blocks, and whose deadline is the end of the period. A thread that is
+ * woken after its deadline starts a new job with a new deadline one period
+ * away, and a full budget. Real-time threads always run before other
+ * threads, the one with the earliest deadline first, and a real-time thread
+ * that becomes ready preempts a thread with a later deadline, or one that is
+ * not real-time, at the next timer interrupt.
+ *
+ * <p>
+ * A running real-time thread is charged for the ticks it runs, and is
+ * preempted when its budget runs out. It then has no more time reserved
+ * until its deadline, and runs only when no other thread is ready. Since
+ * its deadline and budget decide where it waits, it is settled before it
+ * waits in a queue, as <tt>TimeSlice</tt> explains. A job whose deadline
+ * passes before it is done is a deadline miss. The numbers of jobs,
+ * deadline misses and budget overruns are printed with the machine's
+ * statistics.
+ *
+ * <p>
+ * Threads without a reservation are scheduled by the scheduler named by
+ * <tt>DeadlineScheduler.background</tt>, through its own thread queues,
+ * which this scheduler's queues wrap. Priorities are those of that
+ * scheduler.
+ */
+public class DeadlineScheduler extends Scheduler {
+    /**
+     * Allocate a new deadline scheduler, and the scheduler for threads
+     * without a reservation.
+     */
+    public DeadlineScheduler() {
+	background = (Scheduler) Lib.constructObject(
+	    Config.getString("DeadlineScheduler.background",
+			     "nachos.threads.RoundRobinScheduler"));
+	maxUtilization = Config.getDouble("DeadlineScheduler.maxUtilization",
+					  1.0);
+	Lib.assertTrue(maxUtilization > 0 && maxUtilization <= 1);
+    }
+
+    /**
+     * Allocate a new deadline thread queue, wrapping a queue of the
+     * background scheduler.
+     *
+     * @param	transferPriority	passed to the background scheduler.
+     * @return	a new deadline thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue(background.newThreadQueue(transferPriority));
+    }
+
+    public int getPriority(KThread thread) {
+	return background.getPriority(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return background.getEffectivePriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	background.setPriority(thread, priority);
+    }
+
+    public boolean increasePriority() {
+	return background.increasePriority();
+    }
+
+    public boolean decreasePriority() {
+	return background.decreasePriority();
+    }
+
+    /**
+     * Reserve <i>budget</i> ticks of CPU time in every <i>period</i> ticks
+     * for the specified thread, putting it in the real-time class, or change
+     * its reservation. Its first job starts now. The thread must not be
+     * waiting in a queue: it should be the current thread, or a thread that
+     * has not been forked. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to reserve CPU time for.
+     * @param	period	the length of each period, in ticks.
+     * @param	budget	the CPU time reserved in each period, in ticks.
+     * @return	<tt>true</tt> if the reservation was admitted, or
+     *		<tt>false</tt> if it would overcommit the CPU.
+     */
+    public boolean setReservation(KThread thread, long period, long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(budget > 0 && budget <= period);
+
+	DeadlineState state = reservations.get(thread);
+	Lib.assertTrue(state == null || !state.waiting);
+
+	double total = utilization + (double) budget / period;
+	if (state != null)
+	    total -= state.getUtilization();
+
+	if (total > maxUtilization + 1e-9) {
+	    numRejected++;
+	    Lib.debug(dbgDeadline, "rejected reservation for " + thread);
+	    return false;
+	}
+
+	if (state == null) {
+	    state = new DeadlineState(thread);
+	    reservations.put(thread, state);
+	    admitted.add(state);
+	}
+	utilization = total;
+	numAdmitted++;
+
+	if (state == running)
+	    state.charge(slice.charge());
+
+	state.period = period;
+	state.budget = budget;
+	state.startJob(Machine.timer().getTime());
+
+	return true;
+    }
+
+    /**
+     * Remove the specified thread's reservation, if it has one, returning it
+     * to the background scheduler. The thread must not be waiting in a
+     * queue. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread whose reservation to remove.
+     */
+    public void clearReservation(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	DeadlineState state = reservations.remove(thread);
+	if (state == null)
+	    return;
+
+	Lib.assertTrue(!state.waiting);
+
+	utilization = Math.max(0, utilization - state.getUtilization());
+	if (ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.cancelTimeout(state.replenish);
+	if (state == running) {
+	    running = null;
+	    slice.cancel();
+	}
+    }
+
+    public void readyThread(KThread thread) {
+	background.readyThread(thread);
+
+	DeadlineState state = reservations.get(thread);
+	if (state == null)
+	    return;
+
+	if (state == running) {
+	    slice.yielding();
+	    account();
+	    return;
+	}
+
+	// woken, or new: a new job if the last one is past its deadline
+	state.update(Machine.timer().getTime());
+	state.done = false;
+
+	if (current != null && !state.throttled &&
+	    (running == null || running.throttled ||
+	     state.deadline < running.deadline))
+	    slice.preempt();
+    }
+
+    public void runningThread(KThread thread) {
+	// report only once threads are dispatched, as by the kernel's scheduler
+	if (!reporting) {
+	    reporting = true;
+	    Machine.addStatistics(new Runnable() {
+		    public void run() { printStatistics(); }
+		});
+	}
+
+	background.runningThread(thread);
+
+	// if it blocked without waiting in a queue
+	account();
+
+	current = thread;
+	running = (thread == null) ? null : reservations.get(thread);
+	if (running == null) {
+	    slice.start(0);
+	    return;
+	}
+
+	long now = Machine.timer().getTime();
+	running.update(now);
+
+	// preempt it when its budget runs out, or at its deadline
+	if (running.throttled) {
+	    slice.start(0);
+	}
+	else {
+	    long ticks = Math.min(running.remaining, running.deadline - now);
+	    slice.start(Math.max(ticks, 1));
+	}
+    }
+
+    public boolean shouldPreempt() {
+	boolean result = background.shouldPreempt();
+	result |= slice.shouldPreempt() && current != null;
+	return result;
+    }
+
+    public void finishingThread(KThread thread) {
+	background.finishingThread(thread);
+
+	DeadlineState state = reservations.get(thread);
+	if (state != null && state == running) {
+	    // count the job it was running, then give back its reservation
+	    account();
+	    clearReservation(thread);
+	}
+    }
+
+    /**
+     * Charge the running real-time thread, if there is one, for the time
+     * since it was dispatched, and start a new job or throttle it as needed.
+     * If it is not yielding, it blocked or finished, so its job is done. A
+     * thread is only accounted for once each time it is dispatched.
+     */
+    private void account() {
+	if (running == null || slice.isSettled())
+	    return;
+
+	running.charge(slice.settle());
+	running.update(Machine.timer().getTime());
+	if (slice.blocked())
+	    running.done = true;
+    }
+
+    private void printStatistics() {
+	System.out.println("EDF: reservations admitted " + numAdmitted
+			   + ", rejected " + numRejected
+			   + ", utilization " + utilization);
+	System.out.println("EDF: jobs " + numJobs
+			   + ", deadline misses " + numMisses
+			   + ", budget overruns " + numOverruns);
+	for (DeadlineState state : admitted) {
+	    System.out.println("EDF " + state.thread.getName()
+			       + " (budget " + state.budget
+			       + ", period " + state.period + "): jobs "
+			       + state.jobs + ", deadline misses "
+			       + state.misses + ", budget overruns "
+			       + state.overruns);
+	}
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues real-time threads with time
+     * left in their budget first, earliest deadline first, then threads
+     * without a reservation from a queue of the background scheduler, then
+     * real-time threads with no time left.
+     */
+    private class DeadlineQueue extends ThreadQueue {
+	DeadlineQueue(ThreadQueue waitQueue) {
+	    this.waitQueue = waitQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    DeadlineState state = reservations.get(thread);
+	    if (state == null) {
+		waitQueue.waitForAccess(thread);
+		numBackground++;
+		return;
+	    }
+
+	    Lib.assertTrue(!state.waiting);
+	    if (state == running)
+		account();
+
+	    state.waiting = true;
+	    state.waitOrder = numWaits++;
+	    if (state.throttled)
+		throttled.add(state);
+	    else
+		eligible.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // threads whose deadline has passed get a new budget
+	    long now = Machine.timer().getTime();
+	    while (!throttled.isEmpty() && throttled.peek().deadline <= now) {
+		DeadlineState state = throttled.poll();
+		state.update(now);
+		eligible.add(state);
+	    }
+
+	    DeadlineState state = eligible.poll();
+	    if (state == null) {
+		KThread thread = waitQueue.nextThread();
+		if (thread != null) {
+		    numBackground--;
+		    return thread;
+		}
+
+		state = throttled.poll();
+		if (state == null)
+		    return null;
+	    }
+
+	    state.waiting = false;
+	    acquire(state.thread);
+	    return state.thread;
+	}
+
+	/**
+	 * Tell the background queue that the specified thread has access. It
+	 * can only be told while none of its threads are waiting, so a
+	 * real-time thread that gets access past them is not their holder.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (numBackground == 0)
+		waitQueue.acquire(thread);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (DeadlineState state : eligible)
+		System.out.print(state.thread + " (" + state.deadline + ") ");
+	    waitQueue.print();
+	    for (DeadlineState state : throttled)
+		System.out.print(state.thread + " (throttled) ");
+	}
+
+	private ThreadQueue waitQueue;
+	private int numBackground = 0;
+	private PriorityQueue<DeadlineState> eligible =
+	    new PriorityQueue<DeadlineState>(11, order);
+	private PriorityQueue<DeadlineState> throttled =
+	    new PriorityQueue<DeadlineState>(11, order);
+    }
+
+    /**
+     * The reservation of a real-time thread, and the state of its current
+     * job.
+     */
+    private class DeadlineState {
+	DeadlineState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	double getUtilization() {
+	    return (double) budget / period;
+	}
+
+	/**
+	 * Charge the running thread for the specified number of ticks.
+	 */
+	void charge(long ticks) {
+	    remaining -= ticks;
+	}
+
+	/**
+	 * Start a new job if the deadline of the current one has passed,
+	 * counting a deadline miss if that job was not done, or else throttle
+	 * the thread if it has used up its budget.
+	 */
+	void update(long now) {
+	    if (now >= deadline) {
+		jobs++;
+		numJobs++;
+		if (!done) {
+		    misses++;
+		    numMisses++;
+		    Lib.debug(dbgDeadline, thread + " missed its deadline at "
+			      + deadline);
+		}
+
+		// the next period that has not yet ended
+		deadline += ((now - deadline) / period + 1) * period;
+		remaining = budget;
+		throttled = false;
+		done = false;
+		if (ThreadedKernel.alarm != null)
+		    ThreadedKernel.alarm.cancelTimeout(replenish);
+	    }
+	    else if (remaining <= 0 && !throttled) {
+		throttled = true;
+		overruns++;
+		numOverruns++;
+		if (ThreadedKernel.alarm != null)
+		    ThreadedKernel.alarm.setTimeout(replenish, deadline - now);
+	    }
+	}
+
+	/**
+	 * Start a new job now, with a full budget.
+	 */
+	void startJob(long now) {
+	    deadline = now + period;
+	    remaining = budget;
+	    throttled = false;
+	    done = false;
+	    if (ThreadedKernel.alarm != null)
+		ThreadedKernel.alarm.cancelTimeout(replenish);
+	}
+
+	KThread thread;
+	long period, budget;
+
+	long deadline, remaining;
+	long waitOrder;
+	boolean waiting = false;
+	boolean throttled = false, done = false;
+
+	long jobs = 0, misses = 0, overruns = 0;
+
+	/** Lets the thread run again at its deadline, with a new budget. */
+	TimingWheel.Timeout replenish = new TimingWheel.Timeout() {
+		public void expire() {
+		    slice.preempt();
+		}
+	    };
+    }
+
+    /** Orders threads by deadline, and then by waiting time. */
+    private static final Comparator<DeadlineState> order =
+	new Comparator<DeadlineState>() {
+	    public int compare(DeadlineState a, DeadlineState b) {
+		if (a.deadline != b.deadline)
+		    return (a.deadline < b.deadline) ? -1 : 1;
+		if (a.waitOrder != b.waitOrder)
+		    return (a.waitOrder < b.waitOrder) ? -1 : 1;
+		return 0;
+	    }
+	};
+
+    private Scheduler background;
+    private double maxUtilization;
+    private double utilization = 0;
+
+    private HashMap<KThread, DeadlineState> reservations =
+	new HashMap<KThread, DeadlineState>();
+    private ArrayList<DeadlineState> admitted =
+	new ArrayList<DeadlineState>();
+
+    private KThread current = null;
+    private DeadlineState running = null;
+    private boolean reporting = false;
+    private TimeSlice slice = new TimeSlice();
+    private long numWaits = 0;
+
+    private long numAdmitted = 0, numRejected = 0;
+    private long numJobs = 0, numMisses = 0, numOverruns = 0;
+
+    private static final char dbgDeadline = 'e';
+}
@@ -0,0 +1,304 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler, which shares the CPU among the runnable
+ * threads in proportion to their weights, and orders them by virtual
+ * runtime.
+ *
+ * <p>
+ * Each thread is charged for the ticks it runs, from the simulated time at
+ * which it is dispatched and at which it gives up the CPU. Its virtual
+ * runtime advances by those ticks scaled by its weight, so that a heavier
+ * thread's virtual runtime advances more slowly. The next thread to be
+ * dequeued is always the one with the lowest virtual runtime.
+ *
+ * <p>
+ * Weights come from priorities, as in <tt>PriorityScheduler</tt>, from
+ * <tt>priorityMinimum</tt> to <tt>priorityMaximum</tt>: each step up in
+ * priority is worth 25% more CPU, and a thread of the default priority has
+ * weight 1024.
+ *
+ * <p>
+ * Every runnable thread should run once in each scheduling period,
+ * <tt>FairScheduler.latency</tt> ticks long, for a slice of it in proportion
+ * to its weight, but for no less than <tt>FairScheduler.minGranularity</tt>
+ * ticks. A thread is preempted when its slice is used up, or when a thread
+ * that wakes up is far enough behind it. A woken thread's virtual runtime is
+ * set to no less than half a period behind the lowest virtual runtime, so
+ * that threads which sleep get to run soon, but cannot save up time.
+ *
+ * <p>
+ * Each queue keeps its threads in a red-black tree (a <tt>TreeSet</tt>), so
+ * adding a thread and dequeuing the next one take logarithmic time. Queues
+ * other than the ready queue are ordered the same way, and no priority is
+ * transferred. A thread's virtual runtime never changes while it is in a
+ * tree, since the running thread is settled before it joins one, as
+ * <tt>TimeSlice</tt> explains.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new completely fair scheduler.
+     */
+    public FairScheduler() {
+	latency = Config.getInteger("FairScheduler.latency", 4000);
+	minGranularity = Config.getInteger("FairScheduler.minGranularity", 500);
+	Lib.assertTrue(latency > 0 && minGranularity > 0);
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. No priority is transferred.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getFairState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	FairState state = getFairState(thread);
+	if (state == running)
+	    charge(slice.charge());
+	if (state.runnable)
+	    runnableWeight += weights[priority] - state.weight;
+
+	state.priority = priority;
+	state.weight = weights[priority];
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public void readyThread(KThread thread) {
+	FairState state = getFairState(thread);
+
+	if (state == running) {
+	    slice.yielding();
+	    charge(slice.settle());
+	    return;
+	}
+
+	// new, or woken after blocking
+	if (!state.runnable) {
+	    state.runnable = true;
+	    runnableWeight += state.weight;
+	}
+	state.vruntime = Math.max(state.vruntime,
+				  minVruntime - toVirtual(latency)/2);
+
+	if (running != null) {
+	    charge(slice.charge());
+	    if (state.vruntime + toVirtual(minGranularity) < running.vruntime)
+		slice.preempt();
+	}
+    }
+
+    public void runningThread(KThread thread) {
+	if (running != null) {
+	    charge(slice.settle());
+	    if (slice.blocked()) {
+		running.runnable = false;
+		runnableWeight -= running.weight;
+	    }
+	}
+
+	if (thread == null) {
+	    running = null;
+	    slice.start(0);
+	    return;
+	}
+
+	running = getFairState(thread);
+	if (!running.runnable) {
+	    // the first thread, which never became ready
+	    running.runnable = true;
+	    runnableWeight += running.weight;
+	}
+	minVruntime = Math.max(minVruntime, running.vruntime);
+
+	long ticks = (long) latency * running.weight / runnableWeight;
+	slice.start(Math.max(ticks, minGranularity));
+    }
+
+    public boolean shouldPreempt() {
+	return slice.shouldPreempt() && running != null;
+    }
+
+    /**
+     * The default priority for a new thread.
+     */
+    public static final int priorityDefault = PriorityScheduler.priorityDefault;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum = PriorityScheduler.priorityMinimum;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum = PriorityScheduler.priorityMaximum;
+
+    /**
+     * Advance the running thread's virtual runtime by the specified number
+     * of ticks.
+     */
+    private void charge(long ticks) {
+	running.vruntime += ticks * scale / running.weight;
+    }
+
+    /**
+     * Return the virtual runtime that a thread of the default priority
+     * accumulates in the specified number of ticks.
+     */
+    private static long toVirtual(long ticks) {
+	return ticks * scale / weights[priorityDefault];
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected FairState getFairState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FairState(thread);
+
+	return (FairState) thread.schedulingState;
+    }
+
+    private class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FairState state = getFairState(thread);
+	    if (state == running)
+		charge(slice.settle());
+
+	    state.waitOrder = numWaits++;
+	    waitQueue.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FairState state = waitQueue.pollFirst();
+	    return (state == null) ? null : state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (FairState state : waitQueue)
+		System.out.print(state.thread + " (" + state.vruntime + ") ");
+	}
+
+	private TreeSet<FairState> waitQueue = new TreeSet<FairState>(order);
+    }
+
+    /**
+     * The scheduling state of a thread in a completely fair scheduler.
+     */
+    protected class FairState {
+	FairState(KThread thread) {
+	    this.thread = thread;
+	    this.vruntime = minVruntime;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime;
+
+	private int weight = weights[priorityDefault];
+	private long waitOrder;
+	private boolean runnable = false;
+    }
+
+    /** Orders threads by virtual runtime, and then by waiting time. */
+    private static final Comparator<FairState> order =
+	new Comparator<FairState>() {
+	    public int compare(FairState a, FairState b) {
+		if (a.vruntime != b.vruntime)
+		    return (a.vruntime < b.vruntime) ? -1 : 1;
+		if (a.waitOrder != b.waitOrder)
+		    return (a.waitOrder < b.waitOrder) ? -1 : 1;
+		return 0;
+	    }
+	};
+
+    /** The weight of each priority, 25% more for each step up. */
+    private static final int[] weights = {
+	819, 1024, 1280, 1600, 2000, 2500, 3125, 3906
+    };
+
+    /**
+     * Virtual runtime units per tick for a thread of weight 1, large enough
+     * that a heavy thread charged for a single tick still advances.
+     */
+    private static final long scale = 1 << 20;
+
+    private int latency, minGranularity;
+
+    private FairState running = null;
+    private TimeSlice slice = new TimeSlice();
+    private long runnableWeight = 0;
+    private long minVruntime = 0;
+    private long numWaits = 0;
+}
@@ -50,6 +50,9 @@ public class KThread {
 	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 	    readyQueue.acquire(this);	    
 
+	    if (Config.getBoolean("KThread.trace", false))
+		trace = new SchedulerTrace(ThreadedKernel.scheduler);
+
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
 	    name = "main";
@@ -186,6 +189,7 @@ public class KThread {
 	Machine.interrupt().disable();
 
 	Machine.autoGrader().finishingCurrentThread();
+	ThreadedKernel.scheduler.finishingThread(currentThread);
 
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
@@ -231,6 +235,16 @@ public class KThread {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Relinquish the CPU because the scheduler has preempted the current
+     * thread. The same as <tt>yield()</tt>, except that the switch is traced
+     * as involuntary.
+     */
+    public static void preempt() {
+	preempting = true;
+	KThread.yield();
+    }
+
     /**
      * Relinquish the CPU, because the current thread has either finished or it
      * is blocked. This thread must be the current thread.
@@ -266,8 +280,14 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
+	    if (trace != null)
+		trace.readyThread(this, preempting);
+	    ThreadedKernel.scheduler.readyThread(this);
 	    readyQueue.waitForAccess(this);
+	    readiedWhileIdle = true;
+	}
+	preempting = false;
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -306,12 +326,26 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * Rather than yielding over and over until an interrupt makes some thread
+     * ready, the idle thread lets simulated time skip ahead to the next
+     * interrupt, using <tt>Interrupt.idle()</tt>.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    readiedWhileIdle = false;
+		    yield();
+
+		    // nothing to run until the next interrupt, so skip to it
+		    if (!readiedWhileIdle)
+			Machine.interrupt().idle();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -326,6 +360,8 @@ public class KThread {
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
+	if (trace != null)
+	    trace.nextThread(nextThread);
 	if (nextThread == null)
 	    nextThread = idleThread;
 
@@ -381,6 +417,9 @@ public class KThread {
 	Lib.assertTrue(tcb == TCB.currentTCB());
 
 	Machine.autoGrader().runningThread(this);
+	ThreadedKernel.scheduler.runningThread(this == idleThread ? null : this);
+	if (trace != null)
+	    trace.runningThread(this == idleThread ? null : this);
 	
 	status = statusRunning;
 
@@ -425,7 +464,7 @@ public class KThread {
 	Lib.debug(dbgThread, "Enter KThread.selfTest");
 	new KThread(new PingTest(1)).setName("forked thread").fork();
 	new PingTest(0).run();
-	KThread temp = new KThread(new Runnable(){public void run(){new Alarm().waitUntil(1000); test = true;}}).setName("Bool"); 
+	KThread temp = new KThread(new Runnable(){public void run(){ThreadedKernel.alarm.waitUntil(1000); test = true;}}).setName("Bool"); 
 	KThread temp1 = new KThread(new Runnable(){public void run(){}}).setName("Bool");
 	temp.fork();
 	temp1.fork();
@@ -444,6 +483,9 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /** Scheduling statistics for this thread, when tracing. */
+    SchedulerTrace.ThreadTrace traceState = null;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -473,4 +515,10 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    /** Set when a thread becomes ready while the idle thread yields. */
+    private static boolean readiedWhileIdle = false;
+    /** Set while the current thread yields because it was preempted. */
+    private static boolean preempting = false;
+    /** Records scheduling latency, if <tt>KThread.trace</tt> is set. */
+    private static SchedulerTrace trace = null;
 }
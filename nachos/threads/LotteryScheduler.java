@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,6 +21,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * drawing the winner, adding a thread and changing a thread's tickets each
+ * take time logarithmic in the number of waiting threads. Transferred
+ * tickets are kept up to date as they change, by adding the difference along
+ * the chain of queue holders.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -32,7 +35,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +45,348 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long tickets = getLotteryState(thread).effectiveTickets;
+	Lib.assertTrue(tickets <= Integer.MAX_VALUE, "too many tickets");
+	return (int) tickets;
     }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * The waiting threads occupy slots 1 to <tt>count</tt>, in no particular
+     * order, and a Fenwick tree over the slots gives the number of tickets
+     * in any prefix of them.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    Lib.assertTrue(state.waitingQueue == null);
+
+	    if (holder == state) {
+		state.release(this);
+		holder = null;
+	    }
+
+	    if (count+1 == slots.length)
+		grow();
+
+	    count++;
+	    slots[count] = state;
+	    state.waitingQueue = this;
+	    state.slot = count;
+	    add(count, state.effectiveTickets);
+
+	    if (transferPriority && holder != null)
+		holder.addTickets(state.effectiveTickets);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (holder != null)
+		holder.release(this);
+
+	    holder = getLotteryState(thread);
+	    holder.acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState winner = pickNextThread();
+	    if (winner == null)
+		return null;
+
+	    remove(winner);
+	    if (transferPriority && holder != null)
+		holder.addTickets(-winner.effectiveTickets);
+
+	    acquire(winner.thread);
+	    return winner.thread;
+	}
+
+	/**
+	 * Draw the thread that <tt>nextThread()</tt> would return, without
+	 * removing it. Each call holds a new lottery.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no threads are
+	 *		waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (count == 0)
+		return null;
+
+	    Lib.assertTrue(total <= Integer.MAX_VALUE, "too many tickets");
+	    return slots[find(Lib.random((int) total))];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=count; i++)
+		System.out.print(slots[i].thread + " (" +
+				 slots[i].effectiveTickets + ") ");
+	}
+
+	/**
+	 * Remove a waiting thread, moving the thread in the last slot into
+	 * its slot.
+	 */
+	private void remove(LotteryState state) {
+	    int slot = state.slot;
+	    LotteryState last = slots[count];
+
+	    add(slot, last.effectiveTickets - state.effectiveTickets);
+	    add(count, -last.effectiveTickets);
+
+	    slots[slot] = last;
+	    last.slot = slot;
+	    slots[count] = null;
+	    count--;
+
+	    state.waitingQueue = null;
+	    state.slot = 0;
+	}
+
+	/**
+	 * Add to the number of tickets in a slot.
+	 */
+	private void add(int slot, long tickets) {
+	    total += tickets;
+	    for (int i=slot; i<slots.length; i+=i&-i)
+		tree[i] += tickets;
+	}
+
+	/**
+	 * Return the slot that holds the specified ticket, numbering the
+	 * tickets of slot 1 first.
+	 */
+	private int find(long ticket) {
+	    int slot = 0;
+	    for (int step=Integer.highestOneBit(slots.length-1); step>0;
+		 step>>=1) {
+		if (slot+step < slots.length && tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+
+	    return slot+1;
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree.
+	 */
+	private void grow() {
+	    LotteryState[] oldSlots = slots;
+	    slots = new LotteryState[oldSlots.length*2];
+	    System.arraycopy(oldSlots, 0, slots, 0, oldSlots.length);
+
+	    tree = new long[slots.length];
+	    for (int i=1; i<tree.length; i++) {
+		if (i <= count)
+		    tree[i] += slots[i].effectiveTickets;
+		int parent = i + (i&-i);
+		if (parent < tree.length)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	private LotteryState holder = null;
+	private LotteryState[] slots = new LotteryState[8];
+	private long[] tree = new long[8];
+	private int count = 0;
+	private long total = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler: its tickets,
+     * and the tickets transferred to it.
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    int change = tickets - this.tickets;
+	    this.tickets = tickets;
+	    addTickets(change);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever
+	 * is guarded by <tt>queue</tt>.
+	 */
+	void acquire(LotteryQueue queue) {
+	    if (queue.transferPriority)
+		addTickets(queue.total);
+	}
+
+	/**
+	 * Called when the associated thread has given up access to whatever
+	 * is guarded by <tt>queue</tt>.
+	 */
+	void release(LotteryQueue queue) {
+	    if (queue.transferPriority)
+		addTickets(-queue.total);
+	}
+
+	/**
+	 * Add to the effective tickets of the associated thread, and pass
+	 * the change on to the slot it is waiting in and, through a queue that
+	 * transfers tickets, to that queue's holder, and so on down the chain.
+	 * Meeting a thread twice means the chain is a cycle of threads waiting
+	 * on each other, which can never run again, so the walk stops there.
+	 *
+	 * @param	change	the number of tickets to add.
+	 */
+	void addTickets(long change) {
+	    if (change == 0)
+		return;
+
+	    long pass = ++numTransfers;
+
+	    for (LotteryState state=this; state!=null;
+		 state=state.waitingQueue.holder) {
+		if (state.transferPass == pass) {
+		    Lib.debug(dbgLottery, "ticket transfer cycle through " +
+			      state.thread);
+		    return;
+		}
+		state.transferPass = pass;
+
+		state.effectiveTickets += change;
+
+		LotteryQueue queue = state.waitingQueue;
+		if (queue == null)
+		    return;
+
+		queue.add(state.slot, change);
+		if (!queue.transferPriority)
+		    return;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = 0;
+	/** Its tickets plus the tickets transferred to it. */
+	protected long effectiveTickets = 0;
+
+	private LotteryQueue waitingQueue = null;
+	private int slot = 0;
+	private long transferPass = 0;
+    }
+
+    /** The number of ticket transfer walks so far, to notice cycles. */
+    private long numTransfers = 0;
+
+    private static final char dbgLottery = 'l';
 }
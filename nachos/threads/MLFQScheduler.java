@@ -0,0 +1,323 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Each thread is at one of several
+ * levels, and a thread at a higher level (a lower number) is always chosen
+ * before a thread at a lower level. Threads at the same level are chosen
+ * round-robin.
+ *
+ * <p>
+ * Each level has a quantum, the CPU time a thread may use at that level
+ * before it is moved down a level. The time is counted across all of the
+ * thread's turns at the level, and a thread that is still running when its
+ * quantum runs out is preempted. A thread that blocks and is woken moves up
+ * a level, so interactive threads that mostly wait for I/O stay above
+ * CPU-bound ones. A thread that becomes ready above the running thread's
+ * level preempts it at the next timer interrupt. Every so often all threads
+ * are moved back to the top level, so that no thread starves.
+ *
+ * <p>
+ * The quanta, in ticks and from the top level down, are set by
+ * <tt>MLFQScheduler.quanta</tt> in <tt>nachos.conf</tt>, and the interval
+ * between resets by <tt>MLFQScheduler.boostInterval</tt>. The time spent at
+ * each level is printed with the machine's statistics.
+ *
+ * <p>
+ * Queues other than the ready queue are ordered the same way, and no
+ * priority is transferred.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	quanta = getConfigIntegers("MLFQScheduler.quanta",
+				   "1000,2000,4000,8000");
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  100000);
+	Lib.assertTrue(boostInterval >= 0);
+
+	dispatches = new long[quanta.length];
+	ticks = new long[quanta.length];
+	demotions = new long[quanta.length];
+	promotions = new long[quanta.length];
+    }
+
+    /**
+     * Allocate a new multi-level feedback thread queue.
+     *
+     * @param	transferPriority	ignored. No priority is transferred.
+     * @return	a new multi-level feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, 0 being the top.
+     *
+     * @param	thread	the thread whose level to return.
+     * @return	the thread's level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getFeedbackState(thread).getLevel();
+    }
+
+    public void readyThread(KThread thread) {
+	FeedbackState state = getFeedbackState(thread);
+
+	if (state == running) {
+	    slice.yielding();
+	    charge();
+	    if (state.used >= quanta[state.getLevel()] &&
+		state.level < quanta.length-1) {
+		demotions[state.level]++;
+		state.level++;
+		state.used = 0;
+	    }
+	}
+	else if (state.blocked) {
+	    state.blocked = false;
+	    if (state.getLevel() > 0) {
+		promotions[state.level]++;
+		state.level--;
+	    }
+	    state.used = 0;
+	}
+
+	// a thread at a higher level should not wait for the running one
+	if (running != null && state != running &&
+	    state.getLevel() < running.getLevel())
+	    slice.preempt();
+    }
+
+    public void runningThread(KThread thread) {
+	// a scheduler that never dispatches a thread, like the ones built by
+	// SchedulerBenchmark, has no statistics worth printing
+	if (!reporting) {
+	    reporting = true;
+	    Machine.addStatistics(new Runnable() {
+		    public void run() { printStatistics(); }
+		});
+	}
+
+	if (running != null) {
+	    charge();
+	    if (slice.blocked())
+		running.blocked = true;
+	}
+
+	if (thread == null) {
+	    running = null;
+	    slice.start(0);
+	    return;
+	}
+
+	running = getFeedbackState(thread);
+
+	int level = running.getLevel();
+	dispatches[level]++;
+
+	slice.start(Math.max(1, quanta[level] - running.used));
+    }
+
+    public boolean shouldPreempt() {
+	return slice.shouldPreempt() && running != null;
+    }
+
+    /**
+     * Test that a thread that mostly sleeps is not held up by a CPU-bound
+     * thread, which would never be preempted by a round-robin scheduler.
+     */
+    public static void selfTest() {
+	final boolean[] hogDone = new boolean[1];
+
+	KThread hog = new KThread(new Runnable() {
+		public void run() {
+		    // each interrupt enable takes 10 ticks
+		    for (int i=0; i<20000; i++) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		    }
+		    hogDone[0] = true;
+		}
+	    }).setName("hog");
+
+	KThread sleeper = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<10; i++)
+			ThreadedKernel.alarm.waitUntil(1000);
+		}
+	    }).setName("sleeper");
+
+	long start = Machine.timer().getTime();
+	hog.fork();
+	sleeper.fork();
+	sleeper.join();
+	long elapsed = Machine.timer().getTime() - start;
+
+	Lib.assertTrue(!hogDone[0] && elapsed < 20000,
+		       "sleeping thread waited for the CPU-bound thread");
+	hog.join();
+    }
+
+    /**
+     * Charge the running thread for the time since it was dispatched, or
+     * since it was last charged.
+     */
+    private void charge() {
+	int level = running.getLevel();
+	long used = slice.charge();
+
+	running.used += used;
+	ticks[level] += used;
+    }
+
+    /**
+     * Return the number of resets of all threads to the top level so far.
+     */
+    private long getEpoch() {
+	if (boostInterval == 0)
+	    return 0;
+
+	long epoch = Machine.timer().getTime() / boostInterval;
+	if (epoch != lastEpoch) {
+	    numBoosts += epoch - lastEpoch;
+	    lastEpoch = epoch;
+	}
+	return epoch;
+    }
+
+    private void printStatistics() {
+	System.out.println("MLFQ: " + numBoosts + " resets to the top level");
+	for (int i=0; i<quanta.length; i++) {
+	    System.out.println("MLFQ level " + i + " (quantum " + quanta[i]
+			       + "): dispatches " + dispatches[i]
+			       + ", ticks " + ticks[i]
+			       + ", demoted " + demotions[i]
+			       + ", promoted " + promotions[i]);
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected FeedbackState getFeedbackState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FeedbackState(thread);
+
+	return (FeedbackState) thread.schedulingState;
+    }
+
+    private class FeedbackQueue extends ThreadQueue {
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	FeedbackQueue() {
+	    levels = new LinkedList[quanta.length];
+	    for (int i=0; i<levels.length; i++)
+		levels[i] = new LinkedList<KThread>();
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    reset();
+	    levels[getFeedbackState(thread).getLevel()].add(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    reset();
+	    for (int i=0; i<levels.length; i++) {
+		if (!levels[i].isEmpty())
+		    return levels[i].removeFirst();
+	    }
+
+	    return null;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels.length; i++) {
+		for (KThread thread : levels[i])
+		    System.out.print(thread + " (" + i + ") ");
+	    }
+	}
+
+	/**
+	 * After a reset to the top level, move the waiting threads to the top
+	 * level, keeping their order.
+	 */
+	private void reset() {
+	    long now = getEpoch();
+	    if (now == epoch)
+		return;
+
+	    epoch = now;
+	    for (int i=1; i<levels.length; i++) {
+		levels[0].addAll(levels[i]);
+		levels[i].clear();
+	    }
+	}
+
+	private LinkedList<KThread>[] levels;
+	private long epoch = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a multi-level feedback queue
+     * scheduler.
+     */
+    protected class FeedbackState {
+	FeedbackState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of the associated thread, first moving it to the
+	 * top level if there has been a reset since it was last checked.
+	 */
+	int getLevel() {
+	    long now = getEpoch();
+	    if (now != epoch) {
+		epoch = now;
+		level = 0;
+		used = 0;
+	    }
+	    return level;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+
+	private int level = 0;
+	private long used = 0;
+	private boolean blocked = false;
+	private long epoch = 0;
+    }
+
+    private int[] quanta;
+    private long boostInterval;
+
+    private FeedbackState running = null;
+    private boolean reporting = false;
+    private TimeSlice slice = new TimeSlice();
+    private long lastEpoch = 0, numBoosts = 0;
+
+    private long[] dispatches, ticks, demotions, promotions;
+}
@@ -122,18 +122,25 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * <p/>
+     * Waiting threads are kept in one FIFO bucket per effective priority,
+     * ordered by when they started waiting, and a bitmap records which
+     * buckets are occupied, so finding, adding and removing the next thread
+     * take constant time. Effective priorities are kept up to date as they
+     * change, so a thread is moved to another bucket only when its effective
+     * priority really changes.
      */
     protected class PriorityQueue extends ThreadQueue {
 
         PriorityQueue(boolean transferPriority) {
             this.transferPriority = transferPriority;
-            this.threadWait = new LinkedList<ThreadState>();
+            this.buckets = new ThreadState[priorityMaximum + 1];
         }
 
         public void waitForAccess(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
             final ThreadState state = getThreadState(thread);
-            this.threadWait.add(state);
+            Lib.assertTrue(state.waitingQueue == null); // a thread waits in one queue at a time
             state.waitForAccess(this);
         }
 
@@ -155,7 +162,8 @@ public class PriorityScheduler extends Scheduler {
 
             if (NextT == null) return null;
 
-            this.threadWait.remove(NextT);  // Remove thread thats next in the queue 
+            this.remove(NextT);  // Remove thread thats next in the queue 
+            this.updateEffectivePriority(); // the old holder gives it up below anyway
 
 
             
@@ -171,16 +179,8 @@ public class PriorityScheduler extends Scheduler {
 
  
         protected ThreadState pickNextThread() {  //returns next theard, without modfication of the queue 
-            int nextPriority = priorityMinimum;
-            ThreadState next = null;
-            for (final ThreadState currThread : this.threadWait) {
-                int currPriority = currThread.getEffectivePriority();
-                if (next == null || (currPriority > nextPriority)) {
-                    next = currThread;
-                    nextPriority = currPriority;
-                }
-            }
-            return next;
+            if (this.occupied == 0) return null;
+            return this.buckets[highestBucket()]; // oldest waiter of the highest priority
         }
 
         /**
@@ -189,44 +189,115 @@ public class PriorityScheduler extends Scheduler {
     	 	*	 @return	the effective priority of the associated thread.
     	 	*/
         public int getEffectivePriority() {
-            if (!this.transferPriority) {
-                return priorityMinimum;
-            } else if (this.priChange) {
-                // Recalculate effective priorities, do da maths
-                this.effPriority = priorityMinimum;
-                for (final ThreadState curr : this.threadWait) {
-                    this.effPriority = Math.max(this.effPriority, curr.getEffectivePriority());
-                }
-                this.priChange = false;
-            }						
-            return effPriority;		
+            return this.effPriority; // kept up to date by updateEffectivePriority()
         }
 
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            for (final ThreadState state : this.threadWait) {
-                System.out.println(state.getEffectivePriority());
+            for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+                for (ThreadState state = buckets[p]; state != null; state = state.nextWaiter) {
+                    System.out.println(state.getEffectivePriority());
+                }
             }
         }
 
-        private void invalidateCachedPriority() {
-            if (!this.transferPriority) return;
+        /**
+         * Recompute the priority this queue donates to its holder, which is
+         * the highest effective priority of its waiting threads, and tell the
+         * holder if it changed.
+         *
+         * @return <tt>true</tt> if the donated priority changed.
+         */
+        private boolean updateEffectivePriority() {
+            if (!this.transferPriority) return false;
 
-            this.priChange = true;
+            final int priority = (this.occupied == 0) ? priorityMinimum : highestBucket();
+            if (priority == this.effPriority) return false;
 
             if (this.holdres != null) {
-                holdres.invalidateCachedPriority();
+                this.holdres.donations[this.effPriority]--;
+                this.holdres.donations[priority]++;
             }
+            this.effPriority = priority;
+            return true;
+        }
+
+        private int highestBucket() {
+            return 31 - Integer.numberOfLeadingZeros(this.occupied);
         }
 
-       
-        protected final List<ThreadState> threadWait; // waiting threads in a list.
-      
-        protected ThreadState holdres = null;//thread currently holding resource 
-     
-        protected int effPriority = priorityMinimum; // seeting effective Pri to pri min
-        
-        protected boolean priChange = false; // True if the effective priority of this queue has been invalidated.
+        /**
+         * Add a thread to a bucket, behind the threads that have waited
+         * longer. A thread that just started waiting goes straight to the
+         * tail. A thread moved here by a donation is placed by walking back
+         * from the tail past the threads that started waiting after it, which
+         * takes time linear in the size of the bucket at worst. Appending it
+         * would take constant time, but would put it behind threads that
+         * have waited less long.
+         */
+        private void insert(ThreadState state, int priority) {
+            state.waitingQueue = this;
+            state.bucket = priority;
+
+            ThreadState head = this.buckets[priority];
+            if (head == null) {
+                state.prevWaiter = state; // the head's prev is the tail
+                state.nextWaiter = null;
+                this.buckets[priority] = state;
+                this.occupied |= 1 << priority;
+                return;
+            }
+
+            ThreadState after = head.prevWaiter;
+            while (after != null && after.waitOrder > state.waitOrder)
+                after = (after == head) ? null : after.prevWaiter;
+
+            if (after == null) { // oldest, so the new head
+                state.prevWaiter = head.prevWaiter;
+                state.nextWaiter = head;
+                head.prevWaiter = state;
+                this.buckets[priority] = state;
+            } else {
+                state.prevWaiter = after;
+                state.nextWaiter = after.nextWaiter;
+                if (after.nextWaiter != null)
+                    after.nextWaiter.prevWaiter = state;
+                else
+                    head.prevWaiter = state;
+                after.nextWaiter = state;
+            }
+        }
+
+        private void remove(ThreadState state) {
+            final int priority = state.bucket;
+            final ThreadState head = this.buckets[priority];
+
+            if (state == head) {
+                this.buckets[priority] = state.nextWaiter;
+                if (state.nextWaiter == null)
+                    this.occupied &= ~(1 << priority);
+                else
+                    state.nextWaiter.prevWaiter = state.prevWaiter;
+            } else {
+                state.prevWaiter.nextWaiter = state.nextWaiter;
+                if (state.nextWaiter != null)
+                    state.nextWaiter.prevWaiter = state.prevWaiter;
+                else
+                    head.prevWaiter = state.prevWaiter;
+            }
+
+            state.waitingQueue = null;
+            state.prevWaiter = state.nextWaiter = null;
+        }
+
+
+        protected final ThreadState[] buckets; // heads of the waiting threads, one FIFO per effective priority
+
+        protected int occupied = 0; // bit p is set if bucket p has a waiting thread
+
+        protected ThreadState holdres = null;//thread currently holding resource
+
+        protected int effPriority = priorityMinimum; // priority donated to holdres, always minimum unless transferPriority
         /**
          * <tt>true</tt> if this queue should transfer priority from waiting
          * threads to the owning thread.
@@ -251,9 +322,6 @@ public class PriorityScheduler extends Scheduler {
         public ThreadState(KThread thread) {
             this.thread = thread;
 
-            this.currentResources = new LinkedList<PriorityQueue>();
-            this.waitingRes = new LinkedList<PriorityQueue>();
-
             setPriority(priorityDefault);
 
         }
@@ -273,17 +341,7 @@ public class PriorityScheduler extends Scheduler {
          * @return the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
-
-            if (this.currentResources.isEmpty()) {
-                return this.getPriority();
-            } else if (this.priChange) {
-                this.effPriority = this.getPriority();
-                for (final PriorityQueue pq : this.currentResources) {
-                    this.effPriority = Math.max(this.effPriority, pq.getEffectivePriority());
-                }
-                this.priChange = false;
-            }
-            return this.effPriority;
+            return this.effPriority; // kept up to date by updateEffectivePriority()
         }
 
         /**
@@ -295,10 +353,7 @@ public class PriorityScheduler extends Scheduler {
             if (this.priority == priority)
                 return;
             this.priority = priority;
-            // force priority invalidation
-            for (final PriorityQueue priQueue : waitingRes) {
-            		priQueue.invalidateCachedPriority();
-            }
+            this.updateEffectivePriority();
         }
 
         /**
@@ -313,10 +368,16 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#waitForAccess
          */
         public void waitForAccess(PriorityQueue waitQueue) {	//add to queue if waiting for access to something
-        	
-            this.waitingRes.add(waitQueue);
-            this.currentResources.remove(waitQueue);
-            waitQueue.invalidateCachedPriority();  //don't forget to clear
+
+            if (waitQueue.holdres == this) { // give it up before waiting for it again
+                this.release(waitQueue);
+                waitQueue.holdres = null;
+            }
+            this.waitOrder = numWaits++;
+            waitQueue.insert(this, this.effPriority);
+            if (waitQueue.updateEffectivePriority() && waitQueue.holdres != null) {
+                waitQueue.holdres.updateEffectivePriority(); // donate to the holder, and on down the chain
+            }
         }
 
         /**
@@ -330,28 +391,59 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            this.currentResources.add(waitQueue);		//add if currently using
-            
-            this.waitingRes.remove(waitQueue);
-            this.invalidateCachedPriority();			//clear it up yo
+            this.donations[waitQueue.effPriority]++;
+            this.updateEffectivePriority();
         }
 
-       
-        public void release(PriorityQueue waitQueue) {// called when the associated thread has relinquished access 
-            this.currentResources.remove(waitQueue);    //to whatever is guarded by waitQueue.
-            this.invalidateCachedPriority();
+
+        public void release(PriorityQueue waitQueue) {// called when the associated thread has relinquished access
+            // to whatever is guarded by waitQueue, which it held
+            this.donations[waitQueue.effPriority]--;
+            this.updateEffectivePriority();
         }
 
         public KThread getThread() {
             return thread;
         }
 
-        private void invalidateCachedPriority() {
-            if (this.priChange) return;
-            this.priChange = true;
-            for (final PriorityQueue priQue : this.waitingRes) {
-            		priQue.invalidateCachedPriority();
+        /**
+         * Recompute the effective priority of the associated thread and, if
+         * it changed, pass the change on: move the thread to its new bucket,
+         * and if that changes what its queue donates, recompute the queue's
+         * holder in the same way. A thread waits in one queue and a queue has
+         * one holder, so this walks a single chain without recursion, and it
+         * stops at the first priority that does not change. Meeting a thread
+         * twice means the chain is a cycle of threads waiting on each other,
+         * which can never run again, so the walk just stops there.
+         */
+        private void updateEffectivePriority() {
+            final long pass = ++numDonations;
+
+            for (ThreadState state = this; state != null; state = state.waitingQueue.holdres) {
+                if (state.donationPass == pass) {
+                    Lib.debug(dbgDonation, "donation cycle through " + state.thread);
+                    return;
+                }
+                state.donationPass = pass;
+
+                final int priority = state.computeEffectivePriority();
+                if (priority == state.effPriority) return;
+                state.effPriority = priority;
+
+                final PriorityQueue waitQueue = state.waitingQueue;
+                if (waitQueue == null) return;
+
+                waitQueue.remove(state);
+                waitQueue.insert(state, priority);
+                if (!waitQueue.updateEffectivePriority()) return;
+            }
+        }
+
+        private int computeEffectivePriority() {
+            for (int p = priorityMaximum; p > this.priority; p--) {
+                if (this.donations[p] > 0) return p; // the highest priority donated to me
             }
+            return this.priority;
         }
 
 
@@ -364,15 +456,32 @@ public class PriorityScheduler extends Scheduler {
          */
         protected int priority;
 
-        protected final List<PriorityQueue> currentResources; //A list of the queues for which I am the current resource holder.
-
-        protected final List<PriorityQueue> waitingRes;// A list of the queues in which I am waiting.
+        protected final int[] donations = new int[priorityMaximum + 1]; // how many of the queues I hold donate each priority
 
         protected int effPriority = priorityMinimum; //Holds the effective priority of this Thread State.
 
-        protected boolean priChange = false; // True if the effective priority of this queue has been invalidated.
-        
-        
-      
+        protected PriorityQueue waitingQueue = null; // the queue whose bucket I am in, if any
+
+        protected ThreadState prevWaiter, nextWaiter; // my neighbours in that bucket
+
+        protected int bucket; // the effective priority I am bucketed under
+
+        protected long waitOrder; // when I started waiting, to keep buckets FIFO
+
+        protected long donationPass = 0; // the last updateEffectivePriority() walk that reached me
     }
+
+    /**
+     * The number of times any thread has started waiting in a queue, used to
+     * order the threads in each bucket.
+     */
+    private long numWaits = 0;
+
+    /**
+     * The number of donation walks so far, used to notice a walk going round
+     * a cycle.
+     */
+    private long numDonations = 0;
+
+    private static final char dbgDonation = 'd';
 }
\ No newline at end of file
@@ -154,4 +154,86 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by <tt>KThread.ready()</tt> just before the specified thread is
+     * added to the ready queue. If the thread is the current thread, it is
+     * yielding the CPU, possibly because it was preempted; otherwise it is
+     * new, or was blocked and has been woken. Must be called with interrupts
+     * disabled. The default does nothing.
+     *
+     * @param	thread	the thread that is becoming ready.
+     */
+    public void readyThread(KThread thread) {
+    }
+
+    /**
+     * Called when a thread is dispatched, just before it starts running.
+     * Must be called with interrupts disabled. The default does nothing.
+     *
+     * @param	thread	the thread that is about to run, or <tt>null</tt> if
+     *			the idle thread is about to run.
+     */
+    public void runningThread(KThread thread) {
+    }
+
+    /**
+     * Called by <tt>KThread.finish()</tt> when the specified thread, the
+     * current thread, is finishing. It will not run or become ready again.
+     * Must be called with interrupts disabled. The default does nothing.
+     *
+     * @param	thread	the thread that is finishing.
+     */
+    public void finishingThread(KThread thread) {
+    }
+
+    /**
+     * Called by the alarm at the end of each timer interrupt. Return
+     * <tt>true</tt> if the current thread should yield the CPU, because it
+     * has used up its time slice. Must be called with interrupts disabled.
+     * The default never preempts.
+     *
+     * @return	<tt>true</tt> if the current thread should be preempted.
+     */
+    public boolean shouldPreempt() {
+	return false;
+    }
+
+    /**
+     * Return the comma-separated list stored under the specified key in
+     * <tt>nachos.conf</tt>, with the blanks around each item removed.
+     *
+     * @param	key	the key of the list.
+     * @param	defaultValue	the list to return if the key is not set.
+     * @return	the items of the list.
+     */
+    protected static String[] getConfigList(String key, String defaultValue) {
+	String[] values = Config.getString(key, defaultValue).split(",");
+	for (int i=0; i<values.length; i++)
+	    values[i] = values[i].trim();
+	return values;
+    }
+
+    /**
+     * Return the comma-separated list of positive integers stored under the
+     * specified key in <tt>nachos.conf</tt>.
+     *
+     * @param	key	the key of the list.
+     * @param	defaultValue	the list to return if the key is not set.
+     * @return	the integers in the list.
+     */
+    protected static int[] getConfigIntegers(String key, String defaultValue) {
+	String[] values = getConfigList(key, defaultValue);
+	int[] integers = new int[values.length];
+	for (int i=0; i<values.length; i++) {
+	    try {
+		integers[i] = Integer.parseInt(values[i]);
+	    }
+	    catch (NumberFormatException e) {
+		integers[i] = 0;
+	    }
+	    Lib.assertTrue(integers[i] > 0, key + " must be positive integers");
+	}
+	return integers;
+    }
 }
@@ -0,0 +1,251 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that benchmarks the thread queues of each scheduler, by calling
+ * <tt>waitForAccess()</tt>, <tt>nextThread()</tt> and <tt>acquire()</tt>
+ * directly, without running any of the threads. It prints one line of CSV
+ * for each scheduler, workload and number of threads, giving the operations
+ * per second and the bytes allocated per operation.
+ *
+ * <p>
+ * The queues need only the interrupt controller, to check that interrupts
+ * are disabled, so the benchmark is meant to be run with no processor or
+ * other devices, from a configuration such as <tt>bench.conf</tt>, with
+ * <tt>Kernel.kernel</tt> set to this class. Interrupts stay disabled for the
+ * whole run, so no simulated time passes and no thread switches.
+ *
+ * <p>
+ * The schedulers, workloads and numbers of threads are comma-separated
+ * lists, set by <tt>SchedulerBenchmark.schedulers</tt>,
+ * <tt>SchedulerBenchmark.workloads</tt> and
+ * <tt>SchedulerBenchmark.threads</tt>. Each combination is warmed up for
+ * <tt>SchedulerBenchmark.warmup</tt> milliseconds, and then timed for at
+ * least <tt>SchedulerBenchmark.time</tt> milliseconds. The workloads are:
+ *
+ * <ul>
+ * <li><tt>fill</tt>: <i>n</i> threads wait on a queue, and are all dequeued.
+ * <li><tt>churn</tt>: with <i>n</i> threads waiting on a queue, the next
+ * thread is dequeued and waits again.
+ * <li><tt>fanin</tt>: the same, on a queue that transfers priority to the
+ * thread last dequeued.
+ * <li><tt>chain</tt>: <i>n</i> threads each hold a queue that transfers
+ * priority and wait on the next thread's queue, and a thread of high
+ * priority waits on the first queue, is dequeued, and hands it back, so that
+ * each change is passed along the whole chain.
+ * </ul>
+ *
+ * <p>
+ * Each line of CSV is printed with a <tt>csv,</tt> prefix, so that it can be
+ * picked out of the rest of the output; <tt>gmake bench</tt> does this.
+ */
+public class SchedulerBenchmark extends ThreadedKernel {
+    /**
+     * Allocate a new scheduler benchmark kernel.
+     */
+    public SchedulerBenchmark() {
+	super();
+    }
+
+    /**
+     * Initialize this kernel, and read the benchmark parameters.
+     */
+    public void initialize(String[] args) {
+	super.initialize(args);
+
+	schedulers = Scheduler.getConfigList("SchedulerBenchmark.schedulers",
+					     "nachos.threads.RoundRobinScheduler," +
+					     "nachos.threads.PriorityScheduler," +
+					     "nachos.threads.LotteryScheduler," +
+					     "nachos.threads.StrideScheduler," +
+					     "nachos.threads.MLFQScheduler," +
+					     "nachos.threads.FairScheduler," +
+					     "nachos.threads.DeadlineScheduler");
+	workloads = Scheduler.getConfigList("SchedulerBenchmark.workloads",
+					    "fill,churn,fanin,chain");
+
+	threadCounts = Scheduler.getConfigIntegers("SchedulerBenchmark.threads",
+						   "10,100,1000,10000,100000");
+
+	warmup = Config.getInteger("SchedulerBenchmark.warmup", 100);
+	time = Config.getInteger("SchedulerBenchmark.time", 500);
+	Lib.assertTrue(warmup >= 0 && time > 0);
+    }
+
+    /**
+     * The benchmark has no self test.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run every workload against every scheduler, for every number of
+     * threads.
+     */
+    public void run() {
+	System.out.println("csv,scheduler,workload,threads,ops,seconds," +
+			   "ops_per_sec,bytes_per_op");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<schedulers.length; i++) {
+	    Scheduler scheduler =
+		(Scheduler) Lib.constructObject(schedulers[i]);
+
+	    for (int j=0; j<workloads.length; j++) {
+		for (int k=0; k<threadCounts.length; k++)
+		    benchmark(scheduler, workloads[j], threadCounts[k]);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Time one workload against one scheduler, and print the result.
+     */
+    private void benchmark(Scheduler scheduler, String name, int n) {
+	Workload workload;
+	if (name.equals("fill"))
+	    workload = new Fill(scheduler, n);
+	else if (name.equals("churn"))
+	    workload = new Churn(scheduler, n, false);
+	else if (name.equals("fanin"))
+	    workload = new Churn(scheduler, n, true);
+	else if (name.equals("chain"))
+	    workload = new Chain(scheduler, n);
+	else {
+	    Lib.assertNotReached("unknown workload: " + name);
+	    return;
+	}
+
+	measure(workload, warmup);
+
+	long startBytes = Machine.allocatedBytes();
+	long startTime = System.nanoTime();
+	long ops = measure(workload, time);
+	long elapsed = System.nanoTime() - startTime;
+	long bytes = Machine.allocatedBytes() - startBytes;
+
+	double seconds = elapsed / 1e9;
+	System.out.println("csv," + scheduler.getClass().getName() + ","
+			   + name + "," + n + "," + ops + "," + seconds + ","
+			   + Math.round(ops / seconds) + ","
+			   + ((startBytes < 0) ? "" :
+			      String.valueOf(Math.round(bytes * 1000.0 / ops)
+					     / 1000.0)));
+    }
+
+    /**
+     * Run rounds of a workload for at least the specified time, checking
+     * the time less often as rounds turn out to be short.
+     *
+     * @return	the number of queue operations done.
+     */
+    private long measure(Workload workload, long millis) {
+	long ops = 0;
+	long end = System.nanoTime() + millis * 1000000;
+
+	for (int batch=1; ; ) {
+	    long start = System.nanoTime();
+	    for (int i=0; i<batch; i++)
+		ops += workload.round();
+
+	    long now = System.nanoTime();
+	    if (now >= end)
+		return ops;
+
+	    // stop doubling once a batch takes a millisecond
+	    if (now - start < 1000000)
+		batch *= 2;
+	}
+    }
+
+    /**
+     * Allocate threads for a workload, giving them priorities from 1 to 7.
+     */
+    private static KThread[] newThreads(Scheduler scheduler, int n) {
+	KThread[] threads = new KThread[n];
+	for (int i=0; i<n; i++) {
+	    threads[i] = new KThread();
+	    scheduler.setPriority(threads[i], 1 + i%7);
+	}
+	return threads;
+    }
+
+    private static abstract class Workload {
+	/**
+	 * Do one round of the workload.
+	 *
+	 * @return	the number of queue operations done.
+	 */
+	abstract int round();
+    }
+
+    private static class Fill extends Workload {
+	Fill(Scheduler scheduler, int n) {
+	    threads = newThreads(scheduler, n);
+	    queue = scheduler.newThreadQueue(false);
+	}
+
+	int round() {
+	    for (int i=0; i<threads.length; i++)
+		queue.waitForAccess(threads[i]);
+	    for (int i=0; i<threads.length; i++)
+		queue.nextThread();
+
+	    return threads.length*2;
+	}
+
+	private KThread[] threads;
+	private ThreadQueue queue;
+    }
+
+    private static class Churn extends Workload {
+	Churn(Scheduler scheduler, int n, boolean transferPriority) {
+	    queue = scheduler.newThreadQueue(transferPriority);
+	    KThread[] threads = newThreads(scheduler, n);
+	    for (int i=0; i<n; i++)
+		queue.waitForAccess(threads[i]);
+	}
+
+	int round() {
+	    queue.waitForAccess(queue.nextThread());
+	    return 2;
+	}
+
+	private ThreadQueue queue;
+    }
+
+    private static class Chain extends Workload {
+	Chain(Scheduler scheduler, int n) {
+	    threads = newThreads(scheduler, n);
+	    queues = new ThreadQueue[n];
+	    for (int i=0; i<n; i++) {
+		queues[i] = scheduler.newThreadQueue(true);
+		queues[i].acquire(threads[i]);
+		if (i > 0)
+		    queues[i].waitForAccess(threads[i-1]);
+	    }
+
+	    donor = new KThread();
+	    scheduler.setPriority(donor, 7);
+	}
+
+	int round() {
+	    queues[0].waitForAccess(donor);
+	    queues[0].nextThread();
+	    queues[0].acquire(threads[0]);
+	    return 3;
+	}
+
+	private KThread[] threads;
+	private ThreadQueue[] queues;
+	private KThread donor;
+    }
+
+    private String[] schedulers, workloads;
+    private int[] threadCounts;
+    private int warmup, time;
+}
@@ -0,0 +1,207 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * Records how threads are scheduled, when <tt>KThread.trace</tt> is set. It
+ * is called by <tt>KThread</tt> when a thread becomes ready, when the next
+ * thread is taken from the ready queue, and when a thread starts running,
+ * and records, in ticks:
+ *
+ * <ul>
+ * <li>the latency from a thread becoming ready to its running;
+ * <li>the length of each run, until the thread yields, blocks or finishes;
+ * <li>the depth of the ready queue each time the next thread is taken;
+ * <li>the number of voluntary switches, when a thread yields, blocks or
+ * finishes, and of involuntary ones, when it is preempted.
+ * </ul>
+ *
+ * <p>
+ * Latencies, run lengths and queue depths are kept for the scheduler in
+ * histograms with a bucket for each power of two, so that recording a value
+ * costs a few instructions. Each thread's switches and its total and
+ * longest latency and run time are also kept. All of them are printed with
+ * the machine's statistics. The idle thread is not traced.
+ */
+public class SchedulerTrace {
+    /**
+     * Allocate a new scheduler trace.
+     *
+     * @param	scheduler	the scheduler being traced.
+     */
+    public SchedulerTrace(Scheduler scheduler) {
+	schedulerName = scheduler.getClass().getName();
+
+	Machine.addStatistics(new Runnable() {
+		public void run() { print(); }
+	    });
+    }
+
+    /**
+     * Called by <tt>KThread.ready()</tt> when a thread other than the idle
+     * thread becomes ready. If it is the current thread, it is yielding.
+     *
+     * @param	thread		the thread that is becoming ready.
+     * @param	preempted	<tt>true</tt> if the current thread is yielding
+     *				because it was preempted.
+     */
+    void readyThread(KThread thread, boolean preempted) {
+	ThreadTrace state = getThreadTrace(thread);
+	state.readyTime = Machine.timer().getTime();
+	if (state == running) {
+	    state.yielded = true;
+	    state.preempted = preempted;
+	}
+
+	depth++;
+    }
+
+    /**
+     * Called by <tt>KThread.runNextThread()</tt> when it has taken the next
+     * thread from the ready queue.
+     *
+     * @param	thread	the next thread, or <tt>null</tt> if the ready queue
+     *			was empty.
+     */
+    void nextThread(KThread thread) {
+	depths.add(depth);
+	if (thread != null)
+	    depth--;
+    }
+
+    /**
+     * Called by <tt>KThread.restoreState()</tt> when a thread starts
+     * running.
+     *
+     * @param	thread	the thread that is starting to run, or <tt>null</tt>
+     *			if it is the idle thread.
+     */
+    void runningThread(KThread thread) {
+	long now = Machine.timer().getTime();
+
+	if (running != null) {
+	    long ticks = now - running.runTime;
+	    runs.add(ticks);
+	    running.totalRun += ticks;
+	    running.maxRun = Math.max(running.maxRun, ticks);
+
+	    // if it did not yield, it blocked or finished
+	    if (running.yielded && running.preempted) {
+		running.involuntary++;
+		numInvoluntary++;
+	    }
+	    else {
+		running.voluntary++;
+		numVoluntary++;
+	    }
+	    running.yielded = running.preempted = false;
+	}
+
+	if (thread == null) {
+	    running = null;
+	    return;
+	}
+
+	running = getThreadTrace(thread);
+	running.runTime = now;
+	running.dispatches++;
+
+	// the main thread starts running without becoming ready
+	if (running.readyTime >= 0) {
+	    long ticks = now - running.readyTime;
+	    latencies.add(ticks);
+	    running.totalLatency += ticks;
+	    running.maxLatency = Math.max(running.maxLatency, ticks);
+	    running.readyTime = -1;
+	}
+    }
+
+    private ThreadTrace getThreadTrace(KThread thread) {
+	if (thread.traceState == null) {
+	    thread.traceState = new ThreadTrace(thread);
+	    threads.add(thread.traceState);
+	}
+
+	return thread.traceState;
+    }
+
+    private void print() {
+	System.out.println("Trace (" + schedulerName + "): switches voluntary "
+			   + numVoluntary + ", involuntary " + numInvoluntary);
+	latencies.print("ready latency");
+	runs.print("run length");
+	depths.print("ready queue depth");
+
+	for (ThreadTrace state : threads) {
+	    System.out.println("Trace " + state.thread + ": dispatches "
+			       + state.dispatches + ", voluntary "
+			       + state.voluntary + ", involuntary "
+			       + state.involuntary + ", latency total "
+			       + state.totalLatency + " max "
+			       + state.maxLatency + ", run total "
+			       + state.totalRun + " max " + state.maxRun);
+	}
+    }
+
+    /**
+     * A histogram of non-negative values, with a bucket for zero and for
+     * each range from a power of two up to the next.
+     */
+    private static class Histogram {
+	void add(long value) {
+	    buckets[64 - Long.numberOfLeadingZeros(value)]++;
+	    count++;
+	    sum += value;
+	    max = Math.max(max, value);
+	}
+
+	void print(String label) {
+	    System.out.print("Trace " + label + ": count " + count);
+	    if (count > 0) {
+		System.out.print(", mean " + (sum / count) + ", max " + max
+				 + ", buckets");
+		for (int i=0; i<buckets.length; i++) {
+		    if (buckets[i] != 0) {
+			System.out.print(" <" + (1L << i) + ":"
+					 + buckets[i]);
+		    }
+		}
+	    }
+	    System.out.println();
+	}
+
+	private long[] buckets = new long[64];
+	private long count = 0, sum = 0, max = 0;
+    }
+
+    /**
+     * The scheduling statistics of one thread.
+     */
+    static class ThreadTrace {
+	ThreadTrace(KThread thread) {
+	    this.thread = thread;
+	}
+
+	private KThread thread;
+	private long readyTime = -1, runTime = 0;
+	private boolean yielded = false, preempted = false;
+
+	private long dispatches = 0, voluntary = 0, involuntary = 0;
+	private long totalLatency = 0, maxLatency = 0;
+	private long totalRun = 0, maxRun = 0;
+    }
+
+    private String schedulerName;
+
+    private ThreadTrace running = null;
+    private int depth = 0;
+    private long numVoluntary = 0, numInvoluntary = 0;
+
+    private Histogram latencies = new Histogram();
+    private Histogram runs = new Histogram();
+    private Histogram depths = new Histogram();
+
+    private ArrayList<ThreadTrace> threads = new ArrayList<ThreadTrace>();
+}
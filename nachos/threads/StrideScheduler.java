@@ -0,0 +1,465 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the CPU among threads in proportion to their
+ * tickets, deterministically, by stride scheduling.
+ *
+ * <p>
+ * Each thread has a pass value, a virtual time. Whenever a thread has run,
+ * its pass advances by the ticks it ran times its stride, a large constant
+ * divided by its tickets, so a thread with twice the tickets advances half
+ * as fast. The next thread to be dequeued is always the thread with the
+ * lowest pass, ties going to the thread that has waited longest. A thread
+ * that was blocked starts again no earlier than the pass of the most
+ * recently dispatched thread, so it cannot save up time while it sleeps.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a binary min-heap ordered by
+ * pass, and each thread knows its index in the heap, so adding a thread and
+ * dequeuing the next one take logarithmic time. A thread's pass never
+ * changes while it is in a heap: the running thread is charged as described
+ * in <tt>TimeSlice</tt>.
+ *
+ * <p>
+ * As in a lottery scheduler, tickets are transferred through queues that
+ * transfer priority, and they add: a thread holding such a queue runs with
+ * its own tickets plus those of the threads waiting on the queue.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getStrideState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long tickets = getStrideState(thread).effectiveTickets;
+	Lib.assertTrue(tickets <= Integer.MAX_VALUE, "too many tickets");
+	return (int) tickets;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getStrideState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public void readyThread(KThread thread) {
+	StrideState state = getStrideState(thread);
+
+	if (state == running)
+	    chargeRunning();
+	// a thread that was blocked must not have fallen behind
+	else
+	    state.pass = Math.max(state.pass, virtualTime);
+    }
+
+    public void runningThread(KThread thread) {
+	// if it blocked without waiting in a queue, or finished
+	chargeRunning();
+
+	slice.start(0);
+	running = (thread == null) ? null : getStrideState(thread);
+	if (running != null)
+	    virtualTime = Math.max(virtualTime, running.pass);
+    }
+
+    /**
+     * Test that threads are dequeued in order of their pass, by having
+     * threads that have run for different times wait on the same queue.
+     */
+    public static void selfTest() {
+	final int n = 5;
+	final ThreadQueue queue =
+	    ThreadedKernel.scheduler.newThreadQueue(false);
+	final int[] numWaiting = new int[1];
+	KThread[] threads = new KThread[n];
+
+	for (int i=0; i<n; i++) {
+	    // the last thread to wait has run the longest
+	    final int work = (i+1) * 10;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<work; j++) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+
+			Machine.interrupt().disable();
+			queue.waitForAccess(KThread.currentThread());
+			numWaiting[0]++;
+			KThread.sleep();
+			Machine.interrupt().enable();
+		    }
+		}).setName("stride " + i);
+	    threads[i].fork();
+	}
+
+	while (numWaiting[0] < n)
+	    KThread.yield();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long pass = Long.MIN_VALUE;
+	for (KThread thread; (thread = queue.nextThread()) != null; ) {
+	    long next = ((StrideState) thread.schedulingState).pass;
+	    Lib.assertTrue(next >= pass, "thread dequeued out of pass order");
+	    pass = next;
+	    thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<n; i++)
+	    threads[i].join();
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Charge the running thread for the time since it was dispatched, unless
+     * it has already been charged since then.
+     */
+    private void chargeRunning() {
+	if (running != null && !slice.isSettled())
+	    running.charge(slice.settle());
+    }
+
+    /**
+     * Return the stride state of the specified thread.
+     *
+     * @param	thread	the thread whose stride state to return.
+     * @return	the stride state of the specified thread.
+     */
+    protected StrideState getStrideState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideState(thread);
+
+	return (StrideState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest pass.
+     * The waiting threads are kept in a binary heap in
+     * <tt>heap[1..count]</tt>.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    StrideState state = getStrideState(thread);
+	    Lib.assertTrue(state.waitingQueue == null);
+
+	    if (state == running)
+		chargeRunning();
+
+	    if (holder == state) {
+		state.release(this);
+		holder = null;
+	    }
+
+	    if (count+1 == heap.length) {
+		StrideState[] newHeap = new StrideState[heap.length*2];
+		System.arraycopy(heap, 0, newHeap, 0, heap.length);
+		heap = newHeap;
+	    }
+
+	    state.waitingQueue = this;
+	    state.waitOrder = numWaits++;
+	    heap[++count] = state;
+	    siftUp(count);
+
+	    total += state.effectiveTickets;
+	    if (transferPriority && holder != null)
+		holder.addTickets(state.effectiveTickets);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (holder != null)
+		holder.release(this);
+
+	    holder = getStrideState(thread);
+	    holder.acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (count == 0)
+		return null;
+
+	    StrideState next = heap[1];
+	    remove(next);
+	    if (transferPriority && holder != null)
+		holder.addTickets(-next.effectiveTickets);
+
+	    acquire(next.thread);
+	    return next.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=count; i++)
+		System.out.print(heap[i].thread + " (" + heap[i].pass + ") ");
+	}
+
+	/**
+	 * Remove a waiting thread from the heap.
+	 */
+	private void remove(StrideState state) {
+	    int index = state.heapIndex;
+	    StrideState last = heap[count];
+	    heap[count--] = null;
+
+	    if (last != state) {
+		heap[index] = last;
+		last.heapIndex = index;
+		siftDown(index);
+		siftUp(last.heapIndex);
+	    }
+
+	    total -= state.effectiveTickets;
+	    state.waitingQueue = null;
+	    state.heapIndex = 0;
+	}
+
+	private void siftUp(int index) {
+	    StrideState state = heap[index];
+	    while (index > 1 && state.before(heap[index/2])) {
+		heap[index] = heap[index/2];
+		heap[index].heapIndex = index;
+		index /= 2;
+	    }
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+	    StrideState state = heap[index];
+	    while (index*2 <= count) {
+		int child = index*2;
+		if (child < count && heap[child+1].before(heap[child]))
+		    child++;
+		if (!heap[child].before(state))
+		    break;
+
+		heap[index] = heap[child];
+		heap[index].heapIndex = index;
+		index = child;
+	    }
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	private StrideState holder = null;
+	private StrideState[] heap = new StrideState[8];
+	private int count = 0;
+	private long total = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a stride scheduler: its tickets,
+     * the tickets transferred to it, and its pass.
+     */
+    protected class StrideState {
+	/**
+	 * Allocate a new <tt>StrideState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideState(KThread thread) {
+	    this.thread = thread;
+	    this.pass = virtualTime;
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    int change = tickets - this.tickets;
+	    this.tickets = tickets;
+	    addTickets(change);
+	}
+
+	/**
+	 * Advance the pass of the associated thread for having run for the
+	 * specified number of ticks.
+	 */
+	void charge(long ticks) {
+	    long work = Math.max(ticks, 1) * stride1 + remainder;
+	    pass += work / effectiveTickets;
+	    remainder = work % effectiveTickets;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread should be dequeued before the
+	 * specified thread.
+	 */
+	boolean before(StrideState state) {
+	    if (pass != state.pass)
+		return pass < state.pass;
+	    return waitOrder < state.waitOrder;
+	}
+
+	void acquire(StrideQueue queue) {
+	    if (queue.transferPriority)
+		addTickets(queue.total);
+	}
+
+	void release(StrideQueue queue) {
+	    if (queue.transferPriority)
+		addTickets(-queue.total);
+	}
+
+	/**
+	 * Add to the effective tickets of the associated thread, and pass the
+	 * change on through a queue that transfers tickets to that queue's
+	 * holder, and so on down the chain. Meeting a thread twice means the
+	 * chain is a cycle of threads waiting on each other, which can never
+	 * run again, so the walk stops there.
+	 *
+	 * @param	change	the number of tickets to add.
+	 */
+	void addTickets(long change) {
+	    if (change == 0)
+		return;
+
+	    long pass = ++numTransfers;
+
+	    for (StrideState state=this; state!=null;
+		 state=state.waitingQueue.holder) {
+		if (state.transferPass == pass) {
+		    Lib.debug(dbgStride, "ticket transfer cycle through " +
+			      state.thread);
+		    return;
+		}
+		state.transferPass = pass;
+
+		state.effectiveTickets += change;
+
+		StrideQueue queue = state.waitingQueue;
+		if (queue == null)
+		    return;
+
+		queue.total += change;
+		if (!queue.transferPriority)
+		    return;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = 0;
+	/** Its tickets plus the tickets transferred to it. */
+	protected long effectiveTickets = 0;
+	/** The virtual time up to which the associated thread has run. */
+	protected long pass;
+
+	private long remainder = 0;
+	private StrideQueue waitingQueue = null;
+	private int heapIndex = 0;
+	private long waitOrder;
+	private long transferPass = 0;
+    }
+
+    /** How far one tick advances the pass of a thread with one ticket. */
+    private static final long stride1 = 1 << 20;
+
+    private StrideState running = null;
+    private TimeSlice slice = new TimeSlice();
+    private long virtualTime = 0;
+
+    private long numWaits = 0;
+    private long numTransfers = 0;
+
+    private static final char dbgStride = 's';
+}
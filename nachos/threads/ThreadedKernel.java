@@ -49,6 +49,10 @@ public class ThreadedKernel extends Kernel {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	if (scheduler instanceof MLFQScheduler)
+	    MLFQScheduler.selfTest();
+	if (scheduler instanceof StrideScheduler)
+	    StrideScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
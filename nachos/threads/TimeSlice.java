@@ -0,0 +1,138 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * The bookkeeping a scheduler keeps on the thread it has dispatched: when
+ * the thread started running, how much of that time it has been charged for,
+ * whether it has yielded, and a time slice, which asks for the thread to be
+ * preempted when it runs out.
+ *
+ * <p>
+ * A scheduler whose queues are ordered by what their threads have been
+ * charged must charge the running thread before it waits in any queue,
+ * including the ready queue, and not again until it is next dispatched, or
+ * its place in the queue goes stale. A thread that yields is seen by
+ * <tt>Scheduler.readyThread()</tt> before it is queued, but a thread that
+ * blocks is added to its queue before <tt>Scheduler.runningThread()</tt>
+ * hears of the next thread. So such a scheduler calls <tt>settle()</tt> in
+ * both places, and again in <tt>runningThread()</tt> for a thread that went
+ * to sleep without a queue or finished; only the first call in each dispatch
+ * counts. A scheduler whose queues do not depend on the charge can instead
+ * call <tt>charge()</tt> whenever it wants the time so far.
+ */
+final class TimeSlice {
+    /**
+     * Start timing a thread that has just been dispatched, withdrawing any
+     * request to preempt the thread it replaces.
+     *
+     * @param	ticks	the length of the new thread's time slice, or 0 if it
+     *			should not be preempted when it has run for a while.
+     */
+    void start(long ticks) {
+	cancel();
+	preempt = false;
+	start = Machine.timer().getTime();
+	settled = false;
+	yielded = false;
+
+	if (ticks > 0 && ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.setTimeout(timeout, ticks);
+    }
+
+    /**
+     * End the time slice early, without withdrawing a request to preempt the
+     * running thread.
+     */
+    void cancel() {
+	if (ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.cancelTimeout(timeout);
+    }
+
+    /**
+     * Return the ticks the running thread has run since it was dispatched or
+     * last charged, or 0 if it has been settled.
+     *
+     * @return	the ticks to charge the running thread for.
+     */
+    long charge() {
+	if (settled)
+	    return 0;
+
+	long now = Machine.timer().getTime();
+	long ticks = now - start;
+	start = now;
+	return ticks;
+    }
+
+    /**
+     * Charge the running thread for the last time until it is next
+     * dispatched.
+     *
+     * @return	the ticks to charge the running thread for, 0 if it has
+     *		already been settled.
+     */
+    long settle() {
+	long ticks = charge();
+	settled = true;
+	return ticks;
+    }
+
+    /**
+     * Test if the running thread has been settled since it was dispatched.
+     *
+     * @return	<tt>true</tt> if <tt>settle()</tt> has been called.
+     */
+    boolean isSettled() {
+	return settled;
+    }
+
+    /**
+     * Note that the running thread is yielding, on its own or preempted.
+     */
+    void yielding() {
+	yielded = true;
+    }
+
+    /**
+     * Test if the running thread has not yielded since it was dispatched.
+     * If it is being switched out, it blocked or finished.
+     *
+     * @return	<tt>true</tt> if <tt>yielding()</tt> has not been called.
+     */
+    boolean blocked() {
+	return !yielded;
+    }
+
+    /**
+     * Ask for the running thread to be preempted at the end of the next
+     * timer interrupt.
+     */
+    void preempt() {
+	preempt = true;
+    }
+
+    /**
+     * Return and withdraw the request to preempt the running thread, for
+     * <tt>Scheduler.shouldPreempt()</tt>.
+     *
+     * @return	<tt>true</tt> if the running thread should be preempted.
+     */
+    boolean shouldPreempt() {
+	boolean result = preempt;
+	preempt = false;
+	return result;
+    }
+
+    private long start = 0;
+    private boolean settled = false;
+    private boolean yielded = false;
+    private boolean preempt = false;
+
+    /** Asks for the running thread to be preempted when it expires. */
+    private TimingWheel.Timeout timeout = new TimingWheel.Timeout() {
+	    public void expire() {
+		preempt = true;
+	    }
+	};
+}
@@ -0,0 +1,284 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A hierarchical timing wheel, which keeps a set of timeouts and expires them
+ * as time advances. Adding and cancelling a timeout take constant time, and
+ * so does expiring one, apart from moving it down the wheel at most once per
+ * level.
+ *
+ * <p>
+ * The wheel has <tt>levels</tt> levels of 64 slots each. A slot at level
+ * <i>i</i> covers 64<sup><i>i</i></sup> ticks, and a timeout is kept at the
+ * lowest level whose current rotation contains its deadline. Each time a
+ * rotation of a level begins, the timeouts in the next slot of the level
+ * above are moved down. Timeouts too far in the future for the top level wait
+ * in an overflow list. A bitmap per level records which slots are occupied,
+ * so that time can advance straight to the next occupied slot.
+ *
+ * <p>
+ * A timeout expires when <tt>advance()</tt> is called with a time no earlier
+ * than its deadline. Timeouts are expired in order of deadline.
+ *
+ * <p>
+ * The wheel does no synchronization of its own.
+ */
+public class TimingWheel {
+    /**
+     * Allocate a new timing wheel.
+     *
+     * @param	now	the current time.
+     */
+    public TimingWheel(long now) {
+	this.now = now;
+    }
+
+    /**
+     * A timeout that can be added to a timing wheel.
+     */
+    public static abstract class Timeout {
+	/**
+	 * Called by <tt>advance()</tt> when this timeout expires. This method
+	 * may add and cancel timeouts, including this one.
+	 */
+	public abstract void expire();
+
+	/**
+	 * Tests whether this timeout has been added to a wheel and has
+	 * neither expired nor been cancelled.
+	 *
+	 * @return	<tt>true</tt> if this timeout is pending.
+	 */
+	public boolean isPending() {
+	    return level >= 0;
+	}
+
+	/**
+	 * Return the deadline this timeout was last added with.
+	 *
+	 * @return	the deadline of this timeout.
+	 */
+	public long getDeadline() {
+	    return deadline;
+	}
+
+	private long deadline;
+	private int level = -1;
+	private int slot;
+	private Timeout prev, next;
+    }
+
+    /**
+     * Add a timeout that expires at the specified time. If the time has
+     * passed, the timeout expires the next time the wheel advances. The
+     * timeout must not be pending.
+     *
+     * @param	timeout		the timeout to add.
+     * @param	deadline	the time at which it expires.
+     */
+    public void add(Timeout timeout, long deadline) {
+	Lib.assertTrue(!timeout.isPending());
+
+	timeout.deadline = deadline;
+	insert(timeout, Math.max(deadline, now+1));
+	size++;
+    }
+
+    /**
+     * Cancel a timeout, so that it does not expire.
+     *
+     * @param	timeout	the timeout to cancel.
+     * @return	<tt>true</tt> if the timeout was pending.
+     */
+    public boolean cancel(Timeout timeout) {
+	if (!timeout.isPending())
+	    return false;
+
+	unlink(timeout);
+	size--;
+	return true;
+    }
+
+    /**
+     * Advance the wheel to the specified time, expiring every timeout whose
+     * deadline is no later than that time.
+     *
+     * @param	time	the current time.
+     */
+    public void advance(long time) {
+	while (now < time) {
+	    long next = nextSlot();
+	    if (next > time) {
+		now = time;
+		break;
+	    }
+
+	    now = next;
+	    if ((now & slotMask) == 0)
+		cascade();
+
+	    int slot = (int) (now & slotMask);
+	    while (slots[0][slot] != null) {
+		Timeout timeout = slots[0][slot];
+		unlink(timeout);
+		size--;
+		timeout.expire();
+	    }
+	}
+    }
+
+    /**
+     * Return the earliest deadline of any pending timeout, or
+     * <tt>Long.MAX_VALUE</tt> if there are none. A deadline that had passed
+     * when its timeout was added is reported as the next tick after that.
+     *
+     * @return	the time at which the next timeout expires.
+     */
+    public long nextDeadline() {
+	for (int level=0; level<=levels; level++) {
+	    if (occupied[level] == 0)
+		continue;
+
+	    int slot = Long.numberOfTrailingZeros(occupied[level]);
+	    if (level == 0)
+		return (now & ~slotMask) + slot;
+
+	    long earliest = Long.MAX_VALUE;
+	    for (Timeout t=slots[level][slot]; t!=null; t=t.next)
+		earliest = Math.min(earliest, t.deadline);
+	    return Math.max(earliest, now+1);
+	}
+
+	return Long.MAX_VALUE;
+    }
+
+    /**
+     * Return the number of pending timeouts.
+     *
+     * @return	the number of pending timeouts.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Return the time at which the next occupied slot begins, or
+     * <tt>Long.MAX_VALUE</tt> if the wheel is empty. Every occupied slot at
+     * a level begins before any occupied slot at the levels above it.
+     */
+    private long nextSlot() {
+	for (int level=0; level<levels; level++) {
+	    if (occupied[level] == 0)
+		continue;
+
+	    int shift = slotBits*level;
+	    int slot = Long.numberOfTrailingZeros(occupied[level]);
+	    return ((now >> (shift+slotBits)) << (shift+slotBits))
+		+ ((long) slot << shift);
+	}
+
+	if (occupied[levels] != 0)
+	    return (now | ((1L << (slotBits*levels)) - 1)) + 1;
+
+	return Long.MAX_VALUE;
+    }
+
+    /**
+     * Move the timeouts whose slot begins now down from the levels above the
+     * lowest, starting with the highest level, so that nothing is moved into
+     * a slot that has already been emptied.
+     */
+    private void cascade() {
+	if ((now & ((1L << (slotBits*levels)) - 1)) == 0)
+	    reinsert(levels, 0);
+
+	int top = 1;
+	while (top < levels-1 &&
+	       (now & ((1L << (slotBits*(top+1))) - 1)) == 0)
+	    top++;
+
+	for (int level=top; level>=1; level--)
+	    reinsert(level, (int) ((now >> (slotBits*level)) & slotMask));
+    }
+
+    private void reinsert(int level, int slot) {
+	Timeout timeout = slots[level][slot];
+	slots[level][slot] = null;
+	occupied[level] &= ~(1L << slot);
+
+	while (timeout != null) {
+	    Timeout next = timeout.next;
+	    insert(timeout, Math.max(timeout.deadline, now));
+	    timeout = next;
+	}
+    }
+
+    /**
+     * Put a timeout in the slot for the specified time, which must not be
+     * earlier than now.
+     */
+    private void insert(Timeout timeout, long deadline) {
+	int level = 0;
+	while (level < levels &&
+	       (deadline >> (slotBits*(level+1))) !=
+	       (now >> (slotBits*(level+1))))
+	    level++;
+
+	int slot = (level == levels) ? 0 :
+	    (int) ((deadline >> (slotBits*level)) & slotMask);
+
+	timeout.level = level;
+	timeout.slot = slot;
+
+	// append to the tail, which the head's prev points to
+	Timeout head = slots[level][slot];
+	if (head == null) {
+	    timeout.prev = timeout.next = null;
+	    slots[level][slot] = timeout;
+	    occupied[level] |= 1L << slot;
+	}
+	else {
+	    Timeout tail = head.prev;
+	    tail.next = timeout;
+	    timeout.prev = tail;
+	    timeout.next = null;
+	}
+	slots[level][slot].prev = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+	Timeout[] list = slots[timeout.level];
+	int slot = timeout.slot;
+
+	// the head's prev is the tail; the tail's next is null
+	if (timeout == list[slot]) {
+	    list[slot] = timeout.next;
+	    if (list[slot] == null)
+		occupied[timeout.level] &= ~(1L << slot);
+	    else
+		list[slot].prev = timeout.prev;
+	}
+	else {
+	    timeout.prev.next = timeout.next;
+	    if (timeout.next != null)
+		timeout.next.prev = timeout.prev;
+	    else
+		list[slot].prev = timeout.prev;
+	}
+
+	timeout.level = -1;
+	timeout.prev = timeout.next = null;
+    }
+
+    private long now;
+    private int size = 0;
+
+    private static final int levels = 6;
+    private static final int slotBits = 6;
+    private static final long slotMask = (1L << slotBits) - 1;
+
+    /** The slots of each level, and then the overflow list in one slot. */
+    private Timeout[][] slots = new Timeout[levels+1][1 << slotBits];
+    private long[] occupied = new long[levels+1];
+}